@@ -0,0 +1,51 @@
+package benchmark;
+
+import cache.FeatureGridBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AP pair construction Db runs while it reads the kalman estimates of a floorplan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FeatureGridBuilderBenchmark {
+
+    @Param({"50", "150"})
+    public int gridSize;
+
+    @Param({"6", "20"})
+    public int apCount;
+
+    @Param({"0.05", "0.25"})
+    public double coverage;
+
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void createFixture() {
+        fixture = new Fixture(gridSize, gridSize, apCount, coverage, 0, 1);
+    }
+
+    @Benchmark
+    public int[] buildPairFeatures() {
+        FeatureGridBuilder builder = fixture.builder();
+        return builder.features();
+    }
+}
@@ -0,0 +1,162 @@
+package benchmark;
+
+import cache.FeatureGridBuilder;
+import cache.IgnoredCoordinates;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Synthetic floorplan for the benchmarks.
+ *
+ * A cell of the width x height grid is covered with probability coverage, and a covered cell has a reading for
+ * each AP with probability 0.8. A fraction ignoredRatio of the cells goes into the layout's ignore list. The same
+ * arguments always give the same data.
+ *
+ * Running main writes the fixture to an SQLite database that Main can build from:
+ * java -cp target/benchmarks.jar benchmark.Fixture out.db width height aps coverage ignoredRatio
+ */
+public class Fixture {
+
+    public static final String FP_ID = "benchmark";
+
+    public final int maxX;
+    public final int maxY;
+    public final int minX;
+    public final int minY;
+
+    //readings sorted by x then y, the order the kalman query returns them in
+    public final int[] xs;
+    public final int[] ys;
+    public final String[] aps;
+    public final float[] values;
+
+    public final String layout;
+
+    public Fixture(int width, int height, int apCount, double coverage, double ignoredRatio, long seed) {
+        Random random = new Random(seed);
+        String[] macs = new String[apCount];
+        for(int i = 0; i < apCount; i++) {
+            macs[i] = String.format("02:00:00:%02x:%02x:%02x", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+        }
+
+        ArrayList<int[]> cells = new ArrayList<int[]>();
+        ArrayList<String> readingAps = new ArrayList<String>();
+        ArrayList<Float> readingValues = new ArrayList<Float>();
+        int lowX = Integer.MAX_VALUE;
+        int lowY = Integer.MAX_VALUE;
+        for(int x = 0; x < width; x++) {
+            for(int y = 0; y < height; y++) {
+                if(random.nextDouble() >= coverage) {
+                    continue;
+                }
+                for(String mac : macs) {
+                    if(random.nextDouble() < 0.8) {
+                        cells.add(new int[] {x, y});
+                        readingAps.add(mac);
+                        readingValues.add(-30f - random.nextFloat() * 60f);
+                        lowX = Math.min(lowX, x);
+                        lowY = Math.min(lowY, y);
+                    }
+                }
+            }
+        }
+
+        xs = new int[cells.size()];
+        ys = new int[cells.size()];
+        aps = new String[cells.size()];
+        values = new float[cells.size()];
+        for(int i = 0; i < xs.length; i++) {
+            xs[i] = cells.get(i)[0];
+            ys[i] = cells.get(i)[1];
+            aps[i] = readingAps.get(i);
+            values[i] = readingValues.get(i);
+        }
+        maxX = width - 1;
+        maxY = height - 1;
+        minX = xs.length == 0 ? 0 : lowX;
+        minY = ys.length == 0 ? 0 : lowY;
+
+        StringBuilder ignore = new StringBuilder("{\"ignore\": [");
+        boolean first = true;
+        for(int x = 0; x < width; x++) {
+            for(int y = 0; y < height; y++) {
+                if(random.nextDouble() < ignoredRatio) {
+                    ignore.append(first ? "" : ", ").append('[').append(x).append(", ").append(y).append(']');
+                    first = false;
+                }
+            }
+        }
+        layout = ignore.append("]}").toString();
+    }
+
+    /**
+     * Feeds every reading to a new builder, the way Db does while it reads the kalman estimates.
+     */
+    public FeatureGridBuilder builder() {
+        FeatureGridBuilder builder = new FeatureGridBuilder(maxX, maxY, minX, minY);
+        for(int i = 0; i < xs.length; i++) {
+            builder.add(xs[i], ys[i], aps[i], values[i]);
+        }
+        return builder;
+    }
+
+    public IgnoredCoordinates ignored() {
+        return IgnoredCoordinates.parse(Collections.singletonList(layout), maxX, maxY);
+    }
+
+    /**
+     * Writes the fixture as floorplan {@link #FP_ID} of a new SQLite database.
+     */
+    public void writeSqlite(File file) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try {
+            Statement statement = conn.createStatement();
+            statement.executeUpdate("create table if not exists kalman_estimates " +
+                    "(fp_id text, x integer, y integer, ap_id text, kalman real)");
+            statement.executeUpdate("create table if not exists layout_images (id text, layout_image text)");
+            statement.close();
+
+            conn.setAutoCommit(false);
+            PreparedStatement insert = conn.prepareStatement(
+                    "insert into kalman_estimates (fp_id, x, y, ap_id, kalman) values (?, ?, ?, ?, ?)");
+            for(int i = 0; i < xs.length; i++) {
+                insert.setString(1, FP_ID);
+                insert.setInt(2, xs[i]);
+                insert.setInt(3, ys[i]);
+                insert.setString(4, aps[i]);
+                insert.setFloat(5, values[i]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+
+            PreparedStatement layoutInsert = conn.prepareStatement(
+                    "insert into layout_images (id, layout_image) values (?, ?)");
+            layoutInsert.setString(1, FP_ID);
+            layoutInsert.setString(2, layout);
+            layoutInsert.executeUpdate();
+            layoutInsert.close();
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if(args.length != 6) {
+            System.out.println("usage: Fixture out.db width height aps coverage ignoredRatio");
+            System.exit(1);
+        }
+        Fixture fixture = new Fixture(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), Double.parseDouble(args[4]), Double.parseDouble(args[5]), 1);
+        fixture.writeSqlite(new File(args[0]));
+    }
+}
@@ -0,0 +1,48 @@
+package benchmark;
+
+import cache.IgnoredCoordinates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the ignore list of a layout_image JSON document, as getIgnoredCoordinates does for every build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IgnoredCoordinatesBenchmark {
+
+    @Param({"50", "500"})
+    public int gridSize;
+
+    @Param({"0.05", "0.3"})
+    public double ignoredRatio;
+
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void createFixture() {
+        fixture = new Fixture(gridSize, gridSize, 0, 0, ignoredRatio, 1);
+    }
+
+    @Benchmark
+    public IgnoredCoordinates parseLayout() {
+        return IgnoredCoordinates.parse(Collections.singletonList(fixture.layout), fixture.maxX, fixture.maxY);
+    }
+}
@@ -0,0 +1,91 @@
+package benchmark;
+
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.FeatureGridBuilder;
+import cache.IgnoredCoordinates;
+import interpolation.Interpolation;
+import interpolation.PyramidInterpolator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpolator.interpolate over a fresh raw grid per invocation, across engines, grid sizes, densities and
+ * numbers of worker threads. With -prof gc the allocation rate shows the interpolation allocating nothing per
+ * cell, only the raw grid of every invocation and the per-worker tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class InterpolationBenchmark {
+
+    @Param({"50", "150"})
+    public int gridSize;
+
+    @Param({"6"})
+    public int apCount;
+
+    @Param({"0.05", "0.25"})
+    public double coverage;
+
+    @Param({"0.05"})
+    public double ignoredRatio;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"bilinear", "separable", "pyramid"})
+    public String engine;
+
+    private Fixture fixture;
+    private Interpolation interpolation;
+    private IgnoredCoordinates ignored;
+    private ForkJoinPool pool;
+
+    private FeatureGrid grid;
+    private int[] features;
+
+    @Setup(Level.Trial)
+    public void createFixture() {
+        fixture = new Fixture(gridSize, gridSize, apCount, coverage, ignoredRatio, 1);
+        interpolation = Interpolation.forName(engine);
+        ignored = fixture.ignored();
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    //interpolation fills the grid in place, so every invocation starts from the raw features again
+    @Setup(Level.Invocation)
+    public void createGrid() {
+        FeatureGridBuilder builder = fixture.builder();
+        grid = builder.grid();
+        features = builder.features();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public FeatureGrid interpolate() {
+        return interpolation.create(grid, features, fixture.maxX, fixture.maxY, fixture.minX, fixture.minY,
+                ignored, PyramidInterpolator.DEFAULT_LEVELS, pool, BuildMetrics.DISABLED).interpolate();
+    }
+}
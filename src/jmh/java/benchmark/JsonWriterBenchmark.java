@@ -0,0 +1,74 @@
+package benchmark;
+
+import cache.FeatureGrid;
+import cache.FeatureGridBuilder;
+import cache.FeaturesCacheJsonWriter;
+import interpolation.BilinearInterpolator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing an interpolated grid to JSON. The output is counted and dropped so only the writer is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonWriterBenchmark {
+
+    @Param({"50", "150"})
+    public int gridSize;
+
+    @Param({"6"})
+    public int apCount;
+
+    @Param({"0.1"})
+    public double coverage;
+
+    private FeatureGrid grid;
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createGrid() {
+        Fixture fixture = new Fixture(gridSize, gridSize, apCount, coverage, 0.05, 1);
+        FeatureGridBuilder builder = fixture.builder();
+        grid = new BilinearInterpolator(builder.grid(), builder.features(), fixture.maxX, fixture.maxY,
+                fixture.minX, fixture.minY, fixture.ignored()).interpolate();
+    }
+
+    @Benchmark
+    public long writeJson() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        new FeaturesCacheJsonWriter(out).write(grid);
+        return out.count;
+    }
+}
@@ -0,0 +1,174 @@
+import cache.BuildMetrics;
+import cache.Quantization;
+import interpolation.Interpolation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Builds the features cache of many floorplans in one process.
+ *
+ * Every floorplan is read through the same {@link Db}, so the connection and its prepared statements are reused,
+ * and interpolated on the same pool. Floorplans are built concurrently as long as their estimated feature grids
+ * fit in the memory budget. Each floorplan is written to its own file in the output directory.
+ */
+class BatchBuilder {
+
+    private static final long MB = 1024 * 1024;
+
+    private final Db db;
+    //null to keep the raw features
+    private final Interpolation interpolation;
+    private final String format;
+    private final boolean legacyPairs;
+    //null to write values in full
+    private final Quantization quantization;
+    private final boolean incremental;
+    private final boolean writeMetrics;
+    //tile budget in MB for tiled builds, 0 to build every floorplan in one grid
+    private final long tileMb;
+    private final File outputDir;
+    private final int threads;
+    private final int budgetMb;
+    //one permit per megabyte of the budget
+    private final Semaphore memory;
+
+    BatchBuilder(Db db, Interpolation interpolation, String format, boolean legacyPairs, Quantization quantization,
+                 boolean incremental, boolean writeMetrics, long tileMb, File outputDir, long budgetMb, int threads) {
+        this.db = db;
+        this.interpolation = interpolation;
+        this.format = format;
+        this.legacyPairs = legacyPairs;
+        this.quantization = quantization;
+        this.incremental = incremental;
+        this.writeMetrics = writeMetrics;
+        this.tileMb = tileMb;
+        this.outputDir = outputDir;
+        this.threads = threads;
+        this.budgetMb = (int) Math.max(1, Math.min(budgetMb, Integer.MAX_VALUE));
+        this.memory = new Semaphore(this.budgetMb, true);
+    }
+
+    private class Result {
+        final String fpId;
+        final long waitMillis;
+        final long buildMillis;
+        final long bytes;
+        final String error;
+
+        Result(String fpId, long waitMillis, long buildMillis, long bytes, String error) {
+            this.fpId = fpId;
+            this.waitMillis = waitMillis;
+            this.buildMillis = buildMillis;
+            this.bytes = bytes;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Builds every floorplan and prints a timing summary once all of them are done.
+     */
+    void build(List<String> fpIds) throws InterruptedException {
+        outputDir.mkdirs();
+        ExecutorService builders = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, fpIds.size())));
+        ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+        final long start = System.currentTimeMillis();
+
+        for(final String fpId : fpIds) {
+            futures.add(builders.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return buildFloorplan(fpId);
+                }
+            }));
+        }
+        builders.shutdown();
+
+        ArrayList<Result> results = new ArrayList<Result>();
+        for(int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                results.add(new Result(fpIds.get(i), 0, 0, 0, String.valueOf(e.getCause())));
+            }
+        }
+
+        printSummary(results, System.currentTimeMillis() - start);
+    }
+
+    private Result buildFloorplan(String fpId) throws InterruptedException {
+        File outputFile;
+        try {
+            outputFile = outputFile(fpId);
+        } catch (IOException e) {
+            return new Result(fpId, 0, 0, 0, e.toString());
+        }
+        if(outputFile == null) {
+            return new Result(fpId, 0, 0, 0, "Floorplan id does not name a file in " + outputDir);
+        }
+        long estimateMb = (db.estimateFeatureGridBytes(fpId) + MB - 1) / MB;
+        if(tileMb > 0) {
+            estimateMb = Math.min(estimateMb, tileMb);
+        }
+        int permits = (int) Math.max(1, Math.min(budgetMb, estimateMb));
+
+        long waitStart = System.currentTimeMillis();
+        memory.acquire(permits);
+        long buildStart = System.currentTimeMillis();
+        try {
+            BuildMetrics metrics = writeMetrics ? BuildMetrics.start(fpId) : BuildMetrics.DISABLED;
+            if(incremental) {
+                new IncrementalBuilder(db, interpolation, legacyPairs, quantization).build(fpId, outputFile, metrics);
+            } else if(tileMb > 0) {
+                new TiledBuilder(db, interpolation, tileMb, legacyPairs, quantization)
+                        .build(fpId, outputFile, format, metrics);
+            } else {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+                try {
+                    db.createFeaturesCache(fpId, interpolation,
+                            Main.createWriter(format, legacyPairs, quantization, out), metrics);
+                } finally {
+                    out.close();
+                }
+            }
+            metrics.finish(outputFile);
+            return new Result(fpId, buildStart - waitStart, System.currentTimeMillis() - buildStart,
+                    outputFile.length(), null);
+        } catch (IOException e) {
+            return new Result(fpId, buildStart - waitStart, System.currentTimeMillis() - buildStart, 0,
+                    e.toString());
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    /**
+     * @return the cache file of the floorplan, null if its id, once canonical, leads anywhere but directly into the
+     * output directory
+     */
+    private File outputFile(String fpId) throws IOException {
+        File dir = outputDir.getCanonicalFile();
+        File file = new File(dir, fpId + (format.equals("binary") ? ".bin" : ".json")).getCanonicalFile();
+        return dir.equals(file.getParentFile()) ? file : null;
+    }
+
+    private void printSummary(List<Result> results, long totalMillis) {
+        System.out.println(String.format("%-24s %10s %10s %12s  %s", "floorplan", "wait ms", "build ms", "bytes", "status"));
+        for(Result result : results) {
+            System.out.println(String.format("%-24s %10d %10d %12d  %s", result.fpId, result.waitMillis,
+                    result.buildMillis, result.bytes, result.error == null ? "ok" : result.error));
+        }
+        System.out.println(String.format("%d floorplans in %d ms", results.size(), totalMillis));
+    }
+}
@@ -0,0 +1,391 @@
+import cache.BuildMetrics;
+import cache.FeatureFingerprints;
+import cache.FeatureGrid;
+import cache.Quantization;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import interpolation.Interpolation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Builds features caches on request for as long as the process runs, so the JVM, the SQLite driver, the JSON
+ * codecs and the JIT stay warm between builds.
+ *
+ * Listens on a loopback HTTP port for {@code POST /build?db=<path>&floorplan=<id>} with optional
+ * {@code interpolate} (default bilinear), {@code format} (json or binary, default json), {@code legacypairs},
+ * {@code quantize} (decimals) and {@code output} parameters. The cache is the response body, or with
+ * {@code output} it is written to the file of that name in the output directory the server was started with and
+ * the response is its size. The databases named last stay open on a {@link Db} each, and every build
+ * interpolates on the shared pool.
+ *
+ * Loopback alone does not keep out a web page the operator visits, so builds are POST only and requests carrying
+ * an Origin header, which browsers add to every cross-origin POST, are refused. An output name that resolves
+ * anywhere but directly in the output directory is refused too.
+ *
+ * Finished caches are kept in an LRU cache keyed by the request and the {@link FeatureFingerprints} digest of the
+ * floorplan's raw features. A repeated request still reads the floorplan, but gets the kept cache without
+ * interpolating or serializing it again as long as none of its readings changed.
+ */
+class BuildServer {
+
+    private static final long MB = 1024 * 1024;
+
+    //databases kept open at once, each holds its connections and loader threads
+    private static final int OPEN_DATABASES = 16;
+
+    private final ForkJoinPool pool;
+    private final int threads;
+    private final int levels;
+    private final int loaders;
+    private final ResultCache results;
+    //the databases requests named last, by canonical path, the least recently used is closed past OPEN_DATABASES
+    private final LinkedHashMap<String, Db> databases = new LinkedHashMap<String, Db>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Db> eldest) {
+            if(size() <= OPEN_DATABASES) {
+                return false;
+            }
+            if(!builds.containsKey(eldest.getValue())) {
+                eldest.getValue().close();
+            }
+            return true;
+        }
+    };
+    //builds running on each database, an evicted database is closed by the last of them
+    private final HashMap<Db, Integer> builds = new HashMap<Db, Integer>();
+    //canonical directory output files are written to, null to only return caches in the response
+    private final File outputDir;
+
+    /**
+     * @param outputDir the directory requests may name output files in, null to refuse output
+     */
+    BuildServer(ForkJoinPool pool, int threads, int levels, int loaders, long cacheMb, File outputDir)
+            throws IOException {
+        this.pool = pool;
+        this.threads = threads;
+        this.levels = levels;
+        this.loaders = loaders;
+        this.results = new ResultCache(cacheMb * MB);
+        this.outputDir = outputDir == null ? null : outputDir.getCanonicalFile();
+        if(this.outputDir != null && !this.outputDir.isDirectory()) {
+            throw new IOException("No output directory at " + outputDir);
+        }
+    }
+
+    /**
+     * Starts serving on the port, requests are handled on their own threads until the process exits.
+     */
+    void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+        server.setExecutor(workers);
+        server.createContext("/build", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    build(exchange);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    respond(exchange, 500, String.valueOf(e));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        System.out.println("Serving builds on " + server.getAddress());
+    }
+
+    private void build(HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "Builds are POST only");
+            return;
+        }
+        if(exchange.getRequestHeaders().containsKey("Origin")) {
+            respond(exchange, 403, "Builds are not served to browsers");
+            return;
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String dbPath = query.get("db");
+        String fpId = query.get("floorplan");
+        if(dbPath == null || fpId == null) {
+            respond(exchange, 400, "db and floorplan are required");
+            return;
+        }
+        Interpolation interpolation;
+        try {
+            interpolation = Interpolation.forName(query.containsKey("interpolate") ? query.get("interpolate") : "true");
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Unknown interpolation: " + query.get("interpolate"));
+            return;
+        }
+        String format = query.containsKey("format") ? query.get("format").toLowerCase() : "json";
+        if(!format.equals("json") && !format.equals("binary")) {
+            respond(exchange, 400, "Unknown format: " + format);
+            return;
+        }
+        boolean legacyPairs = Boolean.parseBoolean(query.get("legacypairs"));
+        Quantization quantization = null;
+        if(query.containsKey("quantize")) {
+            try {
+                quantization = Quantization.decimals(Integer.parseInt(query.get("quantize")));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "Bad quantize: " + query.get("quantize"));
+                return;
+            }
+        }
+        File outputFile = null;
+        if(query.containsKey("output")) {
+            outputFile = outputFile(query.get("output"));
+            if(outputFile == null) {
+                respond(exchange, 403, "Output must name a file in the output directory: " + query.get("output"));
+                return;
+            }
+        }
+        File dbFile = new File(dbPath);
+        if(!dbFile.isFile()) {
+            respond(exchange, 404, "No database at " + dbPath);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        String canonicalPath = dbFile.getCanonicalPath();
+        Db db = acquire(canonicalPath);
+        try {
+            build(exchange, db, canonicalPath, fpId, interpolation, format, legacyPairs, quantization, outputFile,
+                    start);
+        } finally {
+            release(db);
+        }
+    }
+
+    private void build(HttpExchange exchange, Db db, String dbPath, String fpId, Interpolation interpolation,
+                       String format, boolean legacyPairs, Quantization quantization, File outputFile, long start)
+            throws IOException {
+        Floorplan floorplan = db.readFloorplan(fpId, BuildMetrics.DISABLED);
+        if(floorplan == null) {
+            respond(exchange, 404, "Could not read floorplan " + fpId);
+            return;
+        }
+
+        FeatureGrid grid = floorplan.grid;
+        long digest = FeatureFingerprints.compute(grid, floorplan.features, floorplan.ignoredCoordinates,
+                db.version(interpolation)).digest();
+        String key = dbPath + "\n" + fpId + "\n" + interpolation + "\n" + format + "\n"
+                + legacyPairs + "\n" + (quantization == null ? "" : quantization.scale()) + "\n"
+                + Long.toHexString(digest);
+
+        byte[] cache = results.get(key);
+        boolean hit = cache != null;
+        if(!hit && interpolation != null) {
+            grid = db.interpolate(floorplan, floorplan.features, interpolation, BuildMetrics.DISABLED);
+        }
+
+        //a built cache is streamed to where it goes, and only kept in memory as well while it fits the budget
+        exchange.getResponseHeaders().set("X-Cache", hit ? "hit" : "miss");
+        File tmpFile = null;
+        OutputStream target;
+        if(outputFile != null) {
+            tmpFile = File.createTempFile(outputFile.getName(), ".tmp", outputDir);
+            target = new BufferedOutputStream(new FileOutputStream(tmpFile));
+        } else {
+            exchange.getResponseHeaders().set("Content-Type",
+                    format.equals("binary") ? "application/octet-stream" : "application/json");
+            //0 sends the body chunked, its length is only known once it is written
+            exchange.sendResponseHeaders(200, hit ? cache.length : 0);
+            target = exchange.getResponseBody();
+        }
+        long size;
+        try {
+            try {
+                if(hit) {
+                    target.write(cache);
+                    size = cache.length;
+                } else {
+                    KeepingOutputStream out = new KeepingOutputStream(target, results.budget());
+                    Main.createWriter(format, legacyPairs, quantization, out).write(grid);
+                    size = out.size();
+                    if(out.kept() != null) {
+                        results.put(key, out.kept());
+                    }
+                }
+            } finally {
+                target.close();
+            }
+            if(tmpFile != null) {
+                Main.replace(tmpFile, outputFile);
+            }
+        } finally {
+            if(tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+        System.out.println(String.format("%s: %s %d bytes in %d ms", fpId, hit ? "hit" : "built", size,
+                System.currentTimeMillis() - start));
+
+        if(outputFile != null) {
+            respond(exchange, 200, Long.toString(size));
+        }
+    }
+
+    /**
+     * @return the file of the name directly in the output directory, null if there is no output directory or the
+     * name, once canonical, leads anywhere else
+     */
+    private File outputFile(String name) throws IOException {
+        if(outputDir == null || name.isEmpty()) {
+            return null;
+        }
+        File file = new File(outputDir, name).getCanonicalFile();
+        return outputDir.equals(file.getParentFile()) ? file : null;
+    }
+
+    /**
+     * @return the open database at the canonical path, which stays open until it is released
+     */
+    private synchronized Db acquire(String path) {
+        Db db = databases.get(path);
+        if(db == null) {
+            db = new Db(path, pool, levels, loaders, false);
+            databases.put(path, db);
+        }
+        Integer builds = this.builds.get(db);
+        this.builds.put(db, builds == null ? 1 : builds + 1);
+        return db;
+    }
+
+    /**
+     * Closes the database once its last build is done if it was evicted meanwhile.
+     */
+    private synchronized void release(Db db) {
+        int builds = this.builds.get(db) - 1;
+        if(builds > 0) {
+            this.builds.put(db, builds);
+            return;
+        }
+        this.builds.remove(db);
+        if(!databases.containsValue(db)) {
+            db.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        if(query == null) {
+            return parameters;
+        }
+        for(String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if(equals > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Finished caches, least recently used first, evicted once their total size passes the budget.
+     */
+    private static class ResultCache {
+        private final long budget;
+        private final LinkedHashMap<String, byte[]> caches = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        private long bytes = 0;
+
+        ResultCache(long budget) {
+            this.budget = budget;
+        }
+
+        long budget() {
+            return budget;
+        }
+
+        synchronized byte[] get(String key) {
+            return caches.get(key);
+        }
+
+        synchronized void put(String key, byte[] cache) {
+            if(cache.length > budget) {
+                return;
+            }
+            byte[] replaced = caches.put(key, cache);
+            bytes += cache.length - (replaced == null ? 0 : replaced.length);
+            Iterator<byte[]> eldest = caches.values().iterator();
+            while(bytes > budget) {
+                bytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Passes everything written on and keeps a copy of it, until more than the limit is written.
+     */
+    private static class KeepingOutputStream extends FilterOutputStream {
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private final long limit;
+        private long size = 0;
+
+        KeepingOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            size += len;
+            if(copy != null && size > limit) {
+                copy = null;
+            }
+            if(copy != null) {
+                copy.write(b, off, len);
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * @return everything written, null if it was more than the limit
+         */
+        byte[] kept() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+}
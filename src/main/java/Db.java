@@ -1,12 +1,25 @@
-import com.jsoniter.JsonIterator;
-import com.jsoniter.any.Any;
-import com.jsoniter.output.JsonStream;
-import com.jsoniter.spi.JsonException;
-import interpolation.BilinearInterpolator;
-
-
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.FeatureGridBuilder;
+import cache.FeatureReadings;
+import cache.FeaturesCacheWriter;
+import cache.FinishedFeatures;
+import cache.IgnoredCoordinates;
+import cache.ReadingSink;
+import cache.Shard;
+import interpolation.Interpolation;
+
+
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 class Db {
 
@@ -17,60 +30,284 @@ class Db {
             "min(y) as miny " +
             "from kalman_estimates where fp_id = ?;";
 
-    private static final String KALMAN_QUERY = "select fp_id, x, y, ap_id, kalman from kalman_estimates where fp_id = ?;";
+    //only the columns the pairs are built from, fp_id is already known
+    private static final String KALMAN_QUERY = "select x, y, ap_id, kalman from kalman_estimates where fp_id = ? " +
+            "order by x, y;";
+
+    //the kalman estimates of one x range, a floorplan is read in one range per loader connection
+    private static final String KALMAN_RANGE_QUERY = "select x, y, ap_id, kalman from kalman_estimates " +
+            "where fp_id = ? and x >= ? and x <= ? order by x, y;";
+
+    //rows the driver steps through per fetch while the kalman estimates are streamed
+    private static final int KALMAN_FETCH_SIZE = 4096;
 
     private static final String FLOORPLAN_QUERY = "select layout_image from layout_images where id = ?;";
 
-    private Connection conn;
+    private static final String FLOORPLAN_IDS_QUERY = "select distinct fp_id from kalman_estimates order by fp_id;";
+
+    private static final String AP_COUNT_QUERY = "select count(distinct ap_id) from kalman_estimates where fp_id = ?;";
+
+    private static final String INDEX_COLUMNS_QUERY = "select il.name, ii.name " +
+            "from pragma_index_list('kalman_estimates') il, pragma_index_info(il.name) ii " +
+            "order by il.name, ii.seqno;";
+
+    //every query filters on fp_id, the kalman queries also sort by x and y, so this index answers all of them
+    //without touching the table or sorting
+    private static final List<String> COVERING_INDEX_COLUMNS = Arrays.asList("fp_id", "x", "y", "ap_id", "kalman");
 
-    Db(String path) {
+    private static final String CREATE_INDEX = "create index if not exists kalman_estimates_fp_xy " +
+            "on kalman_estimates(fp_id, x, y, ap_id, kalman);";
+
+    //SQLITE_OPEN_READONLY, a reader never takes a write lock so a WAL database can still be written while it is read
+    private static final String READ_ONLY = "1";
+
+    private static final String[] READ_PRAGMAS = {
+            "pragma mmap_size = 268435456;",
+            //in KiB when negative
+            "pragma cache_size = -65536;",
+            "pragma temp_store = memory;"
+    };
+
+    //finished features waiting to be written, the workers wait for the writer once this many are ahead of it
+    private static final int FINISHED_CAPACITY = 256;
+
+    //masks of the layouts read last, floorplans that share a layout and repeated builds share its mask
+    private static final int IGNORED_CACHE_SIZE = 64;
+
+    private Connection conn;
+    private final ForkJoinPool pool;
+    //coarse levels of the pyramid engine
+    private final int levels;
+    //one connection and range statement per x range of a parallel read, empty to stream on the main connection
+    private final ArrayList<Connection> loaders = new ArrayList<Connection>();
+    private final ArrayList<PreparedStatement> rangeStatements = new ArrayList<PreparedStatement>();
+    private ExecutorService loaderThreads;
+    //by bounds and layout documents
+    private final LinkedHashMap<List<Object>, IgnoredCoordinates> ignoredCache =
+            new LinkedHashMap<List<Object>, IgnoredCoordinates>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, IgnoredCoordinates> eldest) {
+                    return size() > IGNORED_CACHE_SIZE;
+                }
+            };
+    //statements are prepared once and reused for every floorplan read through this connection
+    private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    /**
+     * @param pool runs the interpolation of every floorplan built through this connection
+     * @param levels coarse levels of the pyramid engine for every floorplan built through this connection
+     * @param loaders number of connections the kalman estimates of a floorplan are read on in parallel, by x range
+     * @param createIndex create the covering index of the kalman estimates if the database does not have it
+     */
+    Db(String path, ForkJoinPool pool, int levels, int loaders, boolean createIndex) {
+        this.pool = pool;
+        this.levels = levels;
         try {
             // db parameters
             String url = "jdbc:sqlite:" + path;
             // create a connection to the database
-            conn = DriverManager.getConnection(url);
+            conn = open(url);
+            if(!hasCoveringIndex()) {
+                if(createIndex) {
+                    createIndex(url);
+                } else {
+                    System.err.println("kalman_estimates has no index on " + COVERING_INDEX_COLUMNS
+                            + ", every floorplan read scans and sorts, run with --createindex to create it");
+                }
+            }
+            if(loaders > 1) {
+                for(int i = 0; i < loaders; i++) {
+                    Connection loader = open(url);
+                    this.loaders.add(loader);
+                    rangeStatements.add(loader.prepareStatement(KALMAN_RANGE_QUERY,
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+                }
+                loaderThreads = Executors.newFixedThreadPool(loaders);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    private int[][] getIgnoredCoordinates(String fpId, int[] limitXY) {
-        int[][] ignored = new int[limitXY[0] + 1][limitXY[1] + 1];
+    /**
+     * @return the workers interpolating for this connection
+     */
+    int parallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return the fingerprint version of caches the engine builds through this connection, 0 for raw features
+     */
+    int version(Interpolation interpolation) {
+        return interpolation == null ? 0 : interpolation.version(levels);
+    }
+
+    /**
+     * Opens a read-only connection tuned for large sequential reads.
+     */
+    private static Connection open(String url) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("open_mode", READ_ONLY);
+        Connection connection = DriverManager.getConnection(url, properties);
+        Statement pragmas = connection.createStatement();
         try {
-            PreparedStatement pstmt = conn.prepareStatement(FLOORPLAN_QUERY);
-            pstmt.setString(1, fpId);
-            ResultSet rs = pstmt.executeQuery();
+            for(String pragma : READ_PRAGMAS) {
+                pragmas.execute(pragma);
+            }
+        } finally {
+            pragmas.close();
+        }
+        return connection;
+    }
+
+    private static void createIndex(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try {
+            Statement create = connection.createStatement();
+            create.execute(CREATE_INDEX);
+            create.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return whether an index of the kalman estimates starts with the columns every query reads
+     */
+    private boolean hasCoveringIndex() throws SQLException {
+        HashMap<String, List<String>> indexes = new HashMap<String, List<String>>();
+        ResultSet rs = statement(INDEX_COLUMNS_QUERY).executeQuery();
+        while (rs.next()) {
+            List<String> columns = indexes.get(rs.getString(1));
+            if(columns == null) {
+                columns = new ArrayList<String>();
+                indexes.put(rs.getString(1), columns);
+            }
+            columns.add(rs.getString(2));
+        }
+        rs.close();
+        for(List<String> columns : indexes.values()) {
+            if(columns.size() >= COVERING_INDEX_COLUMNS.size()
+                    && columns.subList(0, COVERING_INDEX_COLUMNS.size()).equals(COVERING_INDEX_COLUMNS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if(pstmt == null) {
+            pstmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    /**
+     * Closes the prepared statements and the connections.
+     */
+    synchronized void close() {
+        if(loaderThreads != null) {
+            loaderThreads.shutdown();
+        }
+        try {
+            for(PreparedStatement pstmt : statements.values()) {
+                pstmt.close();
+            }
+            statements.clear();
+            for(PreparedStatement pstmt : rangeStatements) {
+                pstmt.close();
+            }
+            rangeStatements.clear();
+            for(Connection loader : loaders) {
+                loader.close();
+            }
+            loaders.clear();
+            conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return every floorplan that has kalman estimates
+     */
+    synchronized ArrayList<String> getFloorplanIds() {
+        ArrayList<String> ids = new ArrayList<String>();
+        try {
+            ResultSet rs = statement(FLOORPLAN_IDS_QUERY).executeQuery();
             while (rs.next()) {
-                String layoutString = rs.getString(1);
+                ids.add(rs.getString(1));
+            }
+            rs.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return ids;
+    }
 
-                try {
-                    Any layout = JsonIterator.deserialize(layoutString);
+    /**
+     * Rough size of the feature grid of a floorplan, every unordered AP pair times every cell, in bytes.
+     */
+    synchronized long estimateFeatureGridBytes(String fpId) {
+        int[] limitXy = getLimitXY(fpId);
+        if(limitXy == null) {
+            return 0;
+        }
+        long aps = 0;
+        try {
+            PreparedStatement pstmt = statement(AP_COUNT_QUERY);
+            pstmt.setString(1, fpId);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                aps = rs.getLong(1);
+            }
+            rs.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return aps * (aps - 1) / 2 * (limitXy[0] + 1L) * (limitXy[1] + 1L) * 4;
+    }
 
-                    ArrayList<Any> ignores = (ArrayList<Any>) layout.get("ignore").asList();
-                    for(Any ignore : ignores) {
-                        int x = ignore.get(0).toInt();
-                        int y = ignore.get(1).toInt();
-                        ignored[x][y] = 1;
-                    }
-                }catch(JsonException e) { }
+    private IgnoredCoordinates getIgnoredCoordinates(String fpId, int[] limitXY) {
+        ArrayList<String> layouts = new ArrayList<String>();
+        try {
+            PreparedStatement pstmt = statement(FLOORPLAN_QUERY);
+            pstmt.setString(1, fpId);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                layouts.add(rs.getString(1));
             }
+            rs.close();
         }catch(Exception e) { }
+
+        List<Object> key = Arrays.<Object>asList(limitXY[0], limitXY[1], layouts);
+        IgnoredCoordinates ignored = ignoredCache.get(key);
+        if(ignored == null) {
+            ignored = IgnoredCoordinates.parse(layouts, limitXY[0], limitXY[1]);
+            ignoredCache.put(key, ignored);
+        }
         return ignored;
     }
 
     private int[] getLimitXY(String fpId) {
         try {
-            PreparedStatement pstmt = conn.prepareStatement(LIMIT_XY_QUERY);
+            PreparedStatement pstmt = statement(LIMIT_XY_QUERY);
             pstmt.setString(1, fpId);
             ResultSet rs = pstmt.executeQuery();
 
-            while (rs.next()) {
-                return new int[] {
+            int[] limitXy = null;
+            if (rs.next()) {
+                limitXy = new int[] {
                         rs.getInt(1),
                         rs.getInt(2),
                         rs.getInt(3),
                         rs.getInt(4)};
             }
+            rs.close();
+            return limitXy;
 
         } catch (SQLException e) {
             e.printStackTrace();
@@ -78,104 +315,272 @@ class Db {
         return null;
     }
 
-    public String createFeaturesCache(String fpId, boolean interpolate) {
-
-        try {
+    /**
+     * Builds the features cache of the floorplan and hands it to the writer of the requested output format.
+     *
+     * Interpolation and writing overlap: the features are interpolated on the pool while this thread writes every
+     * feature the workers have finished.
+     */
+    public void createFeaturesCache(String fpId, Interpolation interpolation, FeaturesCacheWriter writer,
+                                    BuildMetrics metrics) throws IOException {
+        createFeaturesCache(fpId, null, interpolation, writer, metrics);
+    }
 
-            int[] limitXy = getLimitXY(fpId);
-            int[][] ignoredCoordinates = getIgnoredCoordinates(fpId, limitXy);
+    /**
+     * Builds the partial features cache of one shard of the floorplan's features.
+     *
+     * @param shard the shard to build, null for every feature
+     */
+    public void createFeaturesCache(String fpId, Shard shard, final Interpolation interpolation,
+                                    FeaturesCacheWriter writer, final BuildMetrics metrics) throws IOException {
+        final Floorplan floorplan = readFloorplan(fpId, shard, metrics);
+        if(floorplan == null) {
+            return;
+        }
+        metrics.setFeatures(floorplan.grid.featureCount(), interpolation != null ? floorplan.features.length : 0);
+        if(interpolation == null) {
+            long start = System.nanoTime();
+            writer.write(floorplan.grid);
+            metrics.add(BuildMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+            return;
+        }
+        interpolateAndWrite(floorplan, floorplan.features, interpolation, writer, metrics);
+    }
 
+    /**
+     * Interpolates the given features of the floorplan in place while the writer writes the grid, each feature as
+     * soon as it is finished.
+     */
+    void interpolateAndWrite(final Floorplan floorplan, final int[] features, final Interpolation interpolation,
+                             FeaturesCacheWriter writer, final BuildMetrics metrics) throws IOException {
+        final FinishedFeatures finished = new FinishedFeatures(FINISHED_CAPACITY);
+        ForkJoinTask<FeatureGrid> interpolating = pool.submit(new Callable<FeatureGrid>() {
+            @Override
+            public FeatureGrid call() {
+                return interpolate(floorplan, features, interpolation, finished, metrics);
+            }
+        });
+        long start = System.nanoTime();
+        boolean written = false;
+        try {
+            writer.write(floorplan.grid, features, finished);
+            written = true;
+        } finally {
+            if(!written) {
+                finished.abandon();
+            }
+            //a failed interpolation has already been reported to the writer, this rethrows its cause
+            interpolating.join();
+        }
+        //only the time spent writing, not waiting for features
+        metrics.add(BuildMetrics.Phase.SERIALIZE, System.nanoTime() - start - finished.waitNanos());
+    }
 
-            PreparedStatement pstmt = conn.prepareStatement(KALMAN_QUERY);
-            pstmt.setString(1, fpId);
-            ResultSet rs = pstmt.executeQuery();
+    /**
+     * Reads the raw features of the floorplan. Reads share the one connection and are serialized, interpolation of
+     * several floorplans can run at the same time.
+     *
+     * @param metrics receives the query time and, separately, the time spent building AP pairs while reading
+     * @return the floorplan, or null if the database could not be read
+     */
+    Floorplan readFloorplan(String fpId, BuildMetrics metrics) {
+        return readFloorplan(fpId, null, metrics);
+    }
 
-            ArrayList<Feature> features = new ArrayList<Feature>();
+    /**
+     * Reads the raw features of one shard of the floorplan.
+     *
+     * @param shard the shard whose features are stored, null for every feature
+     */
+    synchronized Floorplan readFloorplan(String fpId, Shard shard, BuildMetrics metrics) {
+        long start = System.nanoTime();
+        int[] limitXy = getLimitXY(fpId);
+        if(limitXy == null) {
+            return null;
+        }
+        IgnoredCoordinates ignoredCoordinates = getIgnoredCoordinates(fpId, limitXy);
+        FeatureGridBuilder builder = new FeatureGridBuilder(limitXy[0], limitXy[1], limitXy[2], limitXy[3], null,
+                shard);
+        if(!readFeatures(fpId, limitXy, builder, metrics)) {
+            return null;
+        }
+        long flushStart = System.nanoTime();
+        FeatureGrid grid = builder.grid();
+        metrics.add(BuildMetrics.Phase.PAIRS, System.nanoTime() - flushStart);
+        metrics.add(BuildMetrics.Phase.QUERY, flushStart - start);
+        return new Floorplan(fpId, limitXy, ignoredCoordinates, grid, builder.features());
+    }
 
-            while (rs.next()) {
-                int x = rs.getInt(2);
-                int y = rs.getInt(3);
-                Feature f = new Feature(
-                        rs.getString(1),
-                        x,
-                        y,
-                        rs.getString(4),
-                        rs.getFloat(5)
-                );
-                features.add(f);
-            }
-
-            HashMap<String, Float>[][] featuresCacheArray = new HashMap[limitXy[0] + 1][limitXy[1] + 1];
-
-            HashSet<String> allFeatures = new HashSet<String>();
-            int maxX = limitXy[0];
-            int maxY = limitXy[1];
-            int minX = limitXy[2];
-            int minY = limitXy[3];
-            for(Feature f1 : features) {
-                for(Feature f2 : features) {
-                    if(f1.x == f2.x && f1.y == f2.y) {
-                        String feature = f1.apId + f2.apId;
-                        String opposite = f2.apId + f1.apId;
-                        Float value = Math.abs(f1.value - f2.value);
-
-                        HashMap<String, Float> coordMap = null;
-                        if(featuresCacheArray[f1.x][f1.y] != null) {
-                            coordMap = featuresCacheArray[f1.x][f1.y];
-                        } else {
-                            coordMap = new HashMap<String, Float>();
-                        }
-
-                        coordMap.put(feature, value);
-                        featuresCacheArray[f1.x][f1.y] = coordMap;
-                        if(!allFeatures.contains(opposite)) {
-                            allFeatures.add(feature);
-                        }
-                    }
-                }
-            }
+    /**
+     * Reads the raw readings of the floorplan without building its features, for builds that build them a tile
+     * at a time.
+     *
+     * @return the floorplan with its readings, or null if the database could not be read
+     */
+    synchronized Floorplan readFloorplanReadings(String fpId, BuildMetrics metrics) {
+        long start = System.nanoTime();
+        int[] limitXy = getLimitXY(fpId);
+        if(limitXy == null) {
+            return null;
+        }
+        IgnoredCoordinates ignoredCoordinates = getIgnoredCoordinates(fpId, limitXy);
+        FeatureReadings readings = new FeatureReadings();
+        if(!readFeatures(fpId, limitXy, readings, metrics)) {
+            return null;
+        }
+        metrics.add(BuildMetrics.Phase.QUERY, System.nanoTime() - start);
+        return new Floorplan(fpId, limitXy, ignoredCoordinates, readings);
+    }
 
-            HashMap<String, HashMap<String, Float>> featuresCache;
+    /**
+     * Interpolates the given features of the floorplan in place.
+     */
+    FeatureGrid interpolate(Floorplan floorplan, int[] features, Interpolation interpolation, BuildMetrics metrics) {
+        return interpolate(floorplan, features, interpolation, null, metrics);
+    }
 
-            if(interpolate) {
-//                final long startTime = System.currentTimeMillis();
-                BilinearInterpolator bi = new BilinearInterpolator(
-                        featuresCacheArray,
-                        allFeatures,
-                        maxX,
-                        maxY,
-                        minX,
-                        minY,
-                        ignoredCoordinates
-                );
-                featuresCacheArray = bi.interpolate();
-//                long totalTime = System.currentTimeMillis() - startTime;
-//                System.out.println(Long.toString(totalTime));
-            }
+    /**
+     * Interpolates the given features of the floorplan in place, handing each one to finished when it is done.
+     */
+    FeatureGrid interpolate(Floorplan floorplan, int[] features, Interpolation interpolation,
+                            FinishedFeatures finished, BuildMetrics metrics) {
+        return interpolation.create(
+                floorplan.grid,
+                features,
+                floorplan.limitXy[0],
+                floorplan.limitXy[1],
+                floorplan.limitXy[2],
+                floorplan.limitXy[3],
+                floorplan.ignoredCoordinates,
+                levels,
+                pool,
+                metrics
+        ).interpolate(finished);
+    }
 
-            featuresCache = arrayToFeaturesCache(featuresCacheArray);
+    /**
+     * Reads the kalman estimates of the floorplan into the sink, in parallel x ranges when there are loader
+     * connections.
+     *
+     * Every range is read into its own columns on a loader connection. Ranges are handed to the sink in x order
+     * as soon as they and every range before them are read, so the sink sees the same rows in the same order as
+     * from a single streamed query.
+     *
+     * @return false if the database could not be read
+     */
+    private boolean readFeatures(final String fpId, int[] limitXy, ReadingSink sink, BuildMetrics metrics) {
+        int minX = limitXy[2];
+        int ranges = (int) Math.min(rangeStatements.size(), (long) limitXy[0] - minX + 1);
+        if(ranges < 2) {
+            return readFeatures(fpId, sink, metrics);
+        }
 
+        long width = ((long) limitXy[0] - minX + ranges) / ranges;
+        ArrayList<Future<FeatureReadings>> reads = new ArrayList<Future<FeatureReadings>>();
+        for(int range = 0; range < ranges; range++) {
+            final PreparedStatement pstmt = rangeStatements.get(range);
+            final int fromX = (int) (minX + range * width);
+            final int toX = (int) Math.min(limitXy[0], fromX + width - 1);
+            reads.add(loaderThreads.submit(new Callable<FeatureReadings>() {
+                @Override
+                public FeatureReadings call() throws SQLException {
+                    return readRange(pstmt, fpId, fromX, toX);
+                }
+            }));
+        }
 
-            String serialize = JsonStream.serialize(featuresCache);
-            return serialize;
+        //every range is waited for, even after a failure, so no loader is still reading when the next floorplan is
+        boolean read = true;
+        long rows = 0;
+        long pairNanos = 0;
+        for(Future<FeatureReadings> range : reads) {
+            try {
+                FeatureReadings readings = range.get();
+                if(read) {
+                    long start = System.nanoTime();
+                    readings.replay(sink);
+                    pairNanos += System.nanoTime() - start;
+                    rows += readings.size();
+                }
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                read = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if(read) {
+            metrics.addRowsRead(rows);
+            //pairs are built while later ranges are still read, keep them out of the query time
+            metrics.add(BuildMetrics.Phase.PAIRS, pairNanos);
+            metrics.add(BuildMetrics.Phase.QUERY, -pairNanos);
+        }
+        return read;
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static FeatureReadings readRange(PreparedStatement pstmt, String fpId, int fromX, int toX)
+            throws SQLException {
+        pstmt.setString(1, fpId);
+        pstmt.setInt(2, fromX);
+        pstmt.setInt(3, toX);
+        pstmt.setFetchSize(KALMAN_FETCH_SIZE);
+        ResultSet rs = pstmt.executeQuery();
+        FeatureReadings readings = new FeatureReadings();
+        try {
+            while (rs.next()) {
+                int x = rs.getInt(1);
+                int y = rs.getInt(2);
+                int ap = readings.ap(rs.getString(3));
+                readings.add(x, y, ap, rs.getFloat(4));
+            }
+        } finally {
+            rs.close();
         }
-        return null;
+        return readings;
     }
 
-    private HashMap<String, HashMap<String, Float>> arrayToFeaturesCache(HashMap<String, Float>[][] fca) {
-        HashMap<String, HashMap<String, Float>> featuresCache = new HashMap<String, HashMap<String, Float>>();
+    /**
+     * Streams the kalman estimates of the floorplan into the sink on the main connection.
+     *
+     * @return false if the database could not be read
+     */
+    private boolean readFeatures(String fpId, ReadingSink sink, BuildMetrics metrics) {
+        try {
+            PreparedStatement pstmt = statement(KALMAN_QUERY);
+            pstmt.setString(1, fpId);
+            pstmt.setFetchSize(KALMAN_FETCH_SIZE);
+            ResultSet rs = pstmt.executeQuery();
 
-        for(int x = 0; x < fca.length; x++) {
-            for(int y = 0; y < fca[x].length; y++) {
-                if(fca[x][y] != null) {
-                    String key = Integer.toString(x) + "_" + Integer.toString(y);
-                    featuresCache.put(key, fca[x][y]);
+            //rows come back sorted by coordinate so every reading for a cell arrives together, and are handed
+            //to the sink one at a time
+            long rows = 0;
+            long pairNanos = 0;
+            while (rs.next()) {
+                int x = rs.getInt(1);
+                int y = rs.getInt(2);
+                int ap = sink.ap(rs.getString(3));
+                float kalman = rs.getFloat(4);
+                if(metrics.enabled()) {
+                    long start = System.nanoTime();
+                    sink.add(x, y, ap, kalman);
+                    pairNanos += System.nanoTime() - start;
+                } else {
+                    sink.add(x, y, ap, kalman);
                 }
+                rows++;
             }
+            rs.close();
+            metrics.addRowsRead(rows);
+            //pairs are built while the rows are read, keep them out of the query time
+            metrics.add(BuildMetrics.Phase.PAIRS, pairNanos);
+            metrics.add(BuildMetrics.Phase.QUERY, -pairNanos);
+
+            return true;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
-        return featuresCache;
+        return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+import cache.FeatureGrid;
+import cache.FeatureReadings;
+import cache.IgnoredCoordinates;
+
+/**
+ * The raw data of one floorplan as read from the database, before interpolation. Either the grid of AP pair
+ * features, or for tiled builds the readings the tiles are built from.
+ */
+public class Floorplan {
+
+    public final String fpId;
+    public final int[] limitXy;
+    public final IgnoredCoordinates ignoredCoordinates;
+    public final FeatureGrid grid;
+    //one direction of every AP pair, the features the interpolator works on
+    public final int[] features;
+    public final FeatureReadings readings;
+
+    public Floorplan(String fpId, int[] limitXy, IgnoredCoordinates ignoredCoordinates, FeatureGrid grid,
+                     int[] features) {
+        this.fpId = fpId;
+        this.limitXy = limitXy;
+        this.ignoredCoordinates = ignoredCoordinates;
+        this.grid = grid;
+        this.features = features;
+        this.readings = null;
+    }
+
+    public Floorplan(String fpId, int[] limitXy, IgnoredCoordinates ignoredCoordinates, FeatureReadings readings) {
+        this.fpId = fpId;
+        this.limitXy = limitXy;
+        this.ignoredCoordinates = ignoredCoordinates;
+        this.grid = null;
+        this.features = null;
+        this.readings = readings;
+    }
+}
@@ -0,0 +1,150 @@
+import cache.BuildMetrics;
+import cache.FeatureFingerprints;
+import cache.FeatureGrid;
+import cache.FeaturesCacheBinaryWriter;
+import cache.FeaturesCacheReader;
+import cache.Quantization;
+import interpolation.Interpolation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+
+/**
+ * Rebuilds a binary features cache, interpolating only the features whose raw readings changed since the cache
+ * was last built.
+ *
+ * Every build saves {@link FeatureFingerprints} next to the cache. On the next build a feature whose fingerprint
+ * still matches is copied from the previous cache instead of being interpolated again.
+ */
+class IncrementalBuilder {
+
+    private final Db db;
+    //null to keep the raw features
+    private final Interpolation interpolation;
+    //write every AP pair in both orders
+    private final boolean legacyPairs;
+    //null to write values in full
+    private final Quantization quantization;
+
+    IncrementalBuilder(Db db, Interpolation interpolation, boolean legacyPairs, Quantization quantization) {
+        this.db = db;
+        this.interpolation = interpolation;
+        this.legacyPairs = legacyPairs;
+        this.quantization = quantization;
+    }
+
+    /**
+     * Builds the floorplan into outputFile, replacing the previous cache only once the new one is complete.
+     */
+    void build(String fpId, File outputFile, BuildMetrics metrics) throws IOException {
+        Floorplan floorplan = db.readFloorplan(fpId, metrics);
+        if(floorplan == null) {
+            return;
+        }
+        FeatureGrid grid = floorplan.grid;
+        FeatureFingerprints fingerprints = FeatureFingerprints.compute(grid, floorplan.features,
+                floorplan.ignoredCoordinates, db.version(interpolation));
+
+        File fingerprintsFile = FeatureFingerprints.fileFor(outputFile);
+        File tempFile = new File(outputFile.getPath() + ".tmp");
+        File tempFingerprintsFile = new File(fingerprintsFile.getPath() + ".tmp");
+
+        FeaturesCacheReader previous = openPrevious(outputFile, grid);
+        try {
+            int[] changed = floorplan.features;
+            if(interpolation != null) {
+                changed = reuseUnchanged(floorplan, fingerprints, FeatureFingerprints.load(fingerprintsFile), previous);
+            }
+            metrics.setFeatures(grid.featureCount(), changed.length);
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                FeaturesCacheBinaryWriter writer = new FeaturesCacheBinaryWriter(out, legacyPairs, quantization, null);
+                if(interpolation != null) {
+                    //reused sections are written while the changed features are still being interpolated
+                    db.interpolateAndWrite(floorplan, changed, interpolation, writer, metrics);
+                } else {
+                    long start = System.nanoTime();
+                    writer.write(grid);
+                    metrics.add(BuildMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+                }
+            } finally {
+                out.close();
+            }
+            fingerprints.save(tempFingerprintsFile);
+        } finally {
+            if(previous != null) {
+                previous.close();
+            }
+        }
+
+        Main.replace(tempFile, outputFile);
+        Main.replace(tempFingerprintsFile, fingerprintsFile);
+    }
+
+    /**
+     * Copies every feature that did not change from the previous cache into the grid.
+     *
+     * @return the features that still have to be interpolated
+     */
+    private int[] reuseUnchanged(Floorplan floorplan, FeatureFingerprints fingerprints,
+                                 FeatureFingerprints previousFingerprints, FeaturesCacheReader previous) {
+        if(previous == null || previousFingerprints == null) {
+            return floorplan.features;
+        }
+        FeatureGrid grid = floorplan.grid;
+        int[] changed = new int[floorplan.features.length];
+        int count = 0;
+        for(int feature : floorplan.features) {
+            String name = grid.name(feature);
+            int previousFeature = previous.id(name);
+            if(fingerprints.unchanged(previousFingerprints, name) && previousFeature >= 0) {
+                copy(previous, previousFeature, grid, feature);
+            } else {
+                changed[count++] = feature;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(changed, 0, result, 0, count);
+        return result;
+    }
+
+    private void copy(FeaturesCacheReader previous, int previousFeature, FeatureGrid grid, int feature) {
+        FloatBuffer values = previous.feature(previousFeature);
+        values.get(grid.values(), grid.offset(feature), grid.cells());
+    }
+
+    /**
+     * @return a reader over the previous cache if it exists and has the same bounds and encoding as the new grid,
+     * else null, as values rounded for another encoding would be rounded twice
+     */
+    private FeaturesCacheReader openPrevious(File outputFile, FeatureGrid grid) {
+        if(!outputFile.isFile()) {
+            return null;
+        }
+        try {
+            FeaturesCacheReader previous = new FeaturesCacheReader(outputFile);
+            if(previous.maxX() == grid.maxX() && previous.maxY() == grid.maxY()
+                    && previous.minX() == grid.minX() && previous.minY() == grid.minY()
+                    && sameEncoding(previous.quantization())) {
+                return previous;
+            }
+            previous.close();
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable previous cache " + outputFile + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private boolean sameEncoding(Quantization previous) {
+        if(previous == null || quantization == null) {
+            return previous == quantization;
+        }
+        return previous.bytes() == quantization.bytes() && previous.scale() == quantization.scale()
+                && previous.offset() == quantization.offset();
+    }
+}
@@ -1,36 +1,141 @@
+import cache.BuildMetrics;
+import cache.FeaturesCacheBinaryWriter;
+import cache.FeaturesCacheJsonWriter;
+import cache.FeaturesCacheReader;
+import cache.FeaturesCacheWriter;
+import cache.Quantization;
+import cache.Shard;
+import interpolation.Interpolation;
+import interpolation.PyramidInterpolator;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.cli.*;
 
 public class Main {
+
+    private static final long MB = 1024 * 1024;
+
     /**
      *
      * @param args
      * @args[0] = Path to database
      * @args[1] = Floorplan ID
      * @args[2] = output file name for the JSON encoded features cache
+     *
+     * merge followed by the merge options and the partial caches combines the caches of a sharded build
      */
     public static void main(String args[]) {
+        if(args.length > 0 && args[0].equals("merge")) {
+            merge(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        //a server takes the database, floorplan and build options with every request
+        boolean serve = false;
+        for(String arg : args) {
+            serve |= arg.equals("-S") || arg.startsWith("--serve");
+        }
+
         Options options = new Options();
 
         Option dbPath = new Option("d", "database", true, "SQLite Database File Path");
-        dbPath.setRequired(true);
+        dbPath.setRequired(!serve);
         options.addOption(dbPath);
 
         Option fpIdOption = new Option("f", "floorplanid", true, "Floorplan ID");
-        fpIdOption.setRequired(true);
-        options.addOption(fpIdOption);
+        Option batchOption = new Option("b", "batch", true,
+                "Comma separated floorplan IDs, or all, to build one cache per floorplan into the output directory");
+        OptionGroup floorplans = new OptionGroup();
+        floorplans.addOption(fpIdOption);
+        floorplans.addOption(batchOption);
+        floorplans.setRequired(!serve);
+        options.addOptionGroup(floorplans);
 
-        Option outFileOption = new Option("o", "outputfile", true, "Output file");
-        outFileOption.setRequired(true);
+        Option outFileOption = new Option("o", "outputfile", true,
+                "Output file, or output directory in batch mode, or the directory requests may write to in server "
+                        + "mode");
+        outFileOption.setRequired(!serve);
         options.addOption(outFileOption);
 
-        Option interpolateOption = new Option("i", "interpolate", true, "Should use interpolation");
-        interpolateOption.setRequired(true);
+        Option interpolateOption = new Option("i", "interpolate", true,
+                "Interpolation engine, bilinear (or true), separable, pyramid, or none (or false) to keep the raw "
+                        + "features");
+        interpolateOption.setRequired(!serve);
         options.addOption(interpolateOption);
 
+        Option levelsOption = new Option("l", "levels", true,
+                "Coarse levels of the pyramid engine, each half the size of the one below, defaults to "
+                        + PyramidInterpolator.DEFAULT_LEVELS);
+        options.addOption(levelsOption);
+
+        Option parallelismOption = new Option("p", "parallelism", true,
+                "Number of interpolation threads, defaults to the number of processors");
+        options.addOption(parallelismOption);
+
+        Option formatOption = new Option("t", "format", true, "Output format, json (default) or binary");
+        options.addOption(formatOption);
+
+        Option legacyPairsOption = new Option("P", "legacypairs", false,
+                "Write every AP pair under both ap1+ap2 and ap2+ap1 for consumers of the old layout, "
+                        + "pairs are stored once by default");
+        options.addOption(legacyPairsOption);
+
+        Option quantizeOption = new Option("Q", "quantize", true,
+                "Round values to this many decimals, 0 to " + Quantization.MAX_DECIMALS + ", stored as uint8 with 0 "
+                        + "and uint16 otherwise in the binary format");
+        options.addOption(quantizeOption);
+
+        Option shardOption = new Option("s", "shard", true,
+                "Only build shard index/count of the AP pair features, index counting from 0, into a partial binary "
+                        + "cache for merge");
+        options.addOption(shardOption);
+
+        Option memoryBudgetOption = new Option("M", "memorybudget", true,
+                "Batch mode memory budget in MB for concurrent builds, defaults to three quarters of the max heap");
+        options.addOption(memoryBudgetOption);
+
+        Option incrementalOption = new Option("u", "incremental", false,
+                "Only interpolate features whose readings changed since the output was last built, binary format only");
+        options.addOption(incrementalOption);
+
+        Option tileMemoryOption = new Option("T", "tilememory", true,
+                "Build in tiles of AP pair features, keeping at most this many MB of tiles in memory and spilling "
+                        + "finished tiles to disk");
+        options.addOption(tileMemoryOption);
+
+        Option loadersOption = new Option("L", "loaders", true,
+                "Number of read-only connections reading the kalman estimates of a floorplan in parallel x ranges, "
+                        + "defaults to the number of processors up to 4");
+        options.addOption(loadersOption);
+
+        Option createIndexOption = new Option("I", "createindex", false,
+                "Create the covering index on kalman_estimates(fp_id, x, y, ap_id, kalman) if it is missing");
+        options.addOption(createIndexOption);
+
+        Option serveOption = new Option("S", "serve", true,
+                "Keep running and build on HTTP requests to this loopback port, POST /build?db=&floorplan= with "
+                        + "optional interpolate, format and output, output naming a file in the -o directory");
+        options.addOption(serveOption);
+
+        Option cacheMemoryOption = new Option("C", "cachememory", true,
+                "Server mode memory in MB for recently built caches, defaults to 256");
+        options.addOption(cacheMemoryOption);
+
+        Option metricsOption = new Option("m", "metrics", false,
+                "Write phase timings and counters of every build next to its output as <output>.metrics.json");
+        options.addOption(metricsOption);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -38,30 +143,236 @@ public class Main {
         try {
             cmd = parser.parse(options, args);
 
+            int levels = (int) number(cmd, "levels", PyramidInterpolator.DEFAULT_LEVELS, 0, Integer.MAX_VALUE);
+
+            int parallelism = (int) number(cmd, "parallelism", Runtime.getRuntime().availableProcessors(), 1,
+                    Integer.MAX_VALUE);
+            int loaders = (int) number(cmd, "loaders", Math.min(4, Runtime.getRuntime().availableProcessors()), 1,
+                    Integer.MAX_VALUE);
+            if(serve) {
+                long cacheMb = number(cmd, "cachememory", 256, 0, Long.MAX_VALUE / MB);
+                int port = (int) number(cmd, "serve", 0, 0, 65535);
+                try {
+                    File outputDir = cmd.hasOption("outputfile") ? new File(cmd.getOptionValue("outputfile")) : null;
+                    new BuildServer(new ForkJoinPool(parallelism), parallelism, levels, loaders, cacheMb, outputDir)
+                            .start(port);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+                return;
+            }
+
             String dbFileName = cmd.getOptionValue("database");
             String fpId = cmd.getOptionValue("floorplanid");
             String outputFileName = cmd.getOptionValue("outputfile");
-            boolean interpolate = cmd.getOptionValue("interpolate").toLowerCase().equals("true");
+            Interpolation interpolation;
+            try {
+                interpolation = Interpolation.forName(cmd.getOptionValue("interpolate"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Unknown interpolation: " + cmd.getOptionValue("interpolate"));
+            }
+            String format = cmd.getOptionValue("format", "json").toLowerCase();
+            if(!format.equals("json") && !format.equals("binary")) {
+                throw new ParseException("Unknown format: " + format);
+            }
+            boolean incremental = cmd.hasOption("incremental");
+            boolean writeMetrics = cmd.hasOption("metrics");
+            boolean legacyPairs = cmd.hasOption("legacypairs");
+            Quantization quantization = null;
+            if(cmd.hasOption("quantize")) {
+                quantization = Quantization.decimals((int) number(cmd, "quantize", 0, 0, Quantization.MAX_DECIMALS));
+            }
+            long tileMb = number(cmd, "tilememory", 0, 0, Long.MAX_VALUE / MB);
+            if(tileMb > 0 && incremental) {
+                throw new ParseException("Tiled builds can not be incremental");
+            }
+            if(incremental && !format.equals("binary")) {
+                throw new ParseException("Incremental builds need the binary format");
+            }
+            Shard shard = null;
+            if(cmd.hasOption("shard")) {
+                try {
+                    shard = Shard.parse(cmd.getOptionValue("shard"));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+                if(cmd.hasOption("batch") || incremental) {
+                    throw new ParseException("Sharded builds take a single floorplan and can not be incremental");
+                }
+                if(!format.equals("binary") || legacyPairs) {
+                    throw new ParseException("Sharded builds write binary partial caches without legacy pairs, "
+                            + "merge writes the final format");
+                }
+            }
 
-            Db db = new Db(dbFileName);
-            String cache = db.createFeaturesCache(fpId, interpolate);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            Db db = new Db(dbFileName, pool, levels, loaders, cmd.hasOption("createindex"));
 
-            File newTextFile = new File(outputFileName);
-            FileWriter fw = null;
+            if(cmd.hasOption("batch")) {
+                String batch = cmd.getOptionValue("batch");
+                List<String> fpIds = new ArrayList<String>();
+                if(batch.trim().equalsIgnoreCase("all")) {
+                    fpIds = db.getFloorplanIds();
+                } else {
+                    for(String id : batch.split(",")) {
+                        if(!id.trim().isEmpty()) {
+                            fpIds.add(id.trim());
+                        }
+                    }
+                }
+                long budgetMb = number(cmd, "memorybudget", Runtime.getRuntime().maxMemory() / 4 * 3 / MB, 1,
+                        Long.MAX_VALUE / MB);
+                try {
+                    new BatchBuilder(db, interpolation, format, legacyPairs, quantization, incremental, writeMetrics,
+                            tileMb, new File(outputFileName), budgetMb, parallelism).build(fpIds);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                BuildMetrics metrics = writeMetrics ? BuildMetrics.start(fpId) : BuildMetrics.DISABLED;
+                File outputFile = new File(outputFileName);
+                try {
+                    if(incremental) {
+                        new IncrementalBuilder(db, interpolation, legacyPairs, quantization)
+                                .build(fpId, outputFile, metrics);
+                    } else if(tileMb > 0) {
+                        new TiledBuilder(db, interpolation, tileMb, legacyPairs, quantization)
+                                .build(fpId, shard, outputFile, format, metrics);
+                    } else {
+                        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+                        FeaturesCacheWriter writer = shard != null
+                                ? new FeaturesCacheBinaryWriter(out, false, quantization, shard)
+                                : createWriter(format, legacyPairs, quantization, out);
+                        db.createFeaturesCache(fpId, shard, interpolation, writer, metrics);
+                        out.close();
+                    }
+                    metrics.finish(outputFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            db.close();
+            pool.shutdown();
+        }catch(ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+        }
+
+
+    }
+
+    /**
+     * @return the whole number the option is set to, defaultValue if it is not given
+     * @throws ParseException if the value is not a whole number from min to max
+     */
+    private static long number(CommandLine cmd, String option, long defaultValue, long min, long max)
+            throws ParseException {
+        if(!cmd.hasOption(option)) {
+            return defaultValue;
+        }
+        String value = cmd.getOptionValue(option).trim();
+        long number;
+        try {
+            number = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Not a whole number for " + option + ": " + value);
+        }
+        if(number < min || number > max) {
+            throw new ParseException(option + " must be from " + min + " to " + max + ", not " + number);
+        }
+        return number;
+    }
+
+    /**
+     * Streams the partial binary caches of a sharded build into one cache, a feature at a time.
+     */
+    private static void merge(String[] args) {
+        Options options = new Options();
+
+        Option outFileOption = new Option("o", "outputfile", true, "Output file");
+        outFileOption.setRequired(true);
+        options.addOption(outFileOption);
+
+        options.addOption(new Option("t", "format", true, "Output format, json (default) or binary"));
+        options.addOption(new Option("P", "legacypairs", false,
+                "Write every AP pair under both ap1+ap2 and ap2+ap1 for consumers of the old layout"));
+        options.addOption(new Option("Q", "quantize", true,
+                "Round values to this many decimals, 0 to " + Quantization.MAX_DECIMALS
+                        + ", defaults to the rounding of the partial caches"));
+
+        HelpFormatter formatter = new HelpFormatter();
+        try {
+            CommandLine cmd = new DefaultParser().parse(options, args);
+            String format = cmd.getOptionValue("format", "json").toLowerCase();
+            if(!format.equals("json") && !format.equals("binary")) {
+                throw new ParseException("Unknown format: " + format);
+            }
+            if(cmd.getArgs().length == 0) {
+                throw new ParseException("No partial caches to merge");
+            }
+            Quantization quantization = null;
+            if(cmd.hasOption("quantize")) {
+                quantization = Quantization.decimals((int) number(cmd, "quantize", 0, 0, Quantization.MAX_DECIMALS));
+            }
+
+            List<FeaturesCacheReader> caches = new ArrayList<FeaturesCacheReader>();
             try {
-                fw = new FileWriter(newTextFile);
-                fw.write(cache);
-                fw.close();
+                for(String path : cmd.getArgs()) {
+                    caches.add(new FeaturesCacheReader(new File(path)));
+                }
+                if(!cmd.hasOption("quantize")) {
+                    //rounding is only carried over when every partial agrees on it
+                    quantization = caches.get(0).quantization();
+                    for(FeaturesCacheReader cache : caches) {
+                        Quantization other = cache.quantization();
+                        if(quantization == null ? other != null : !quantization.equals(other)) {
+                            throw new ParseException("The partial caches are rounded differently, choose the "
+                                    + "rounding of the merged cache with -Q");
+                        }
+                    }
+                }
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(cmd.getOptionValue("outputfile")));
+                try {
+                    createWriter(format, cmd.hasOption("legacypairs"), quantization, out).write(caches);
+                } finally {
+                    out.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
+                System.exit(1);
+            } finally {
+                for(FeaturesCacheReader cache : caches) {
+                    try {
+                        cache.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
             }
-        }catch(ParseException e) {
+        } catch (ParseException e) {
             System.out.println(e.getMessage());
-            formatter.printHelp("utility-name", options);
+            formatter.printHelp("utility-name merge [options] partial-cache...", options);
 
             System.exit(1);
         }
+    }
 
+    /**
+     * Moves a finished file over the one it replaces in a single rename, so a reader finds either the old file or
+     * the new one and never neither.
+     */
+    static void replace(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
+    static FeaturesCacheWriter createWriter(String format, boolean legacyPairs, Quantization quantization,
+                                            OutputStream out) {
+        if(format.equals("binary")) {
+            return new FeaturesCacheBinaryWriter(out, legacyPairs, quantization, null);
+        }
+        return new FeaturesCacheJsonWriter(out, legacyPairs, quantization);
     }
 }
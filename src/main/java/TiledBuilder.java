@@ -0,0 +1,319 @@
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.FeatureGridBuilder;
+import cache.FeaturesCacheJsonWriter;
+import cache.FeaturesCacheReader;
+import cache.FeaturesCacheSectionWriter;
+import cache.Quantization;
+import cache.Shard;
+import interpolation.Interpolation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the features cache of a floorplan whose feature grid does not fit in memory, one tile of features at a
+ * time.
+ *
+ * The readings are read once into primitive columns. The AP pairs are then split into tiles small enough that
+ * {@link #TILES_IN_FLIGHT} tiles' grids fit in the tile budget, less what the interpolator allocates for the
+ * features its workers are interpolating. Tiles go through three stages handed off one to the
+ * next: a thread builds them from the readings, the pool interpolates them and another thread spills them to a
+ * binary cache file. While one tile is interpolated the next is built and the previous one spilled. The spill file
+ * becomes the binary output, or JSON output is streamed from its mapping.
+ *
+ * Tiles cut across features rather than across the floor. The interpolator's neighbour searches and regressions
+ * span whole rows and columns, so a spatial tile would need the whole grid as its halo, while a feature only ever
+ * depends on its own values. A tiled build gives the same cache as an untiled one.
+ */
+class TiledBuilder {
+
+    private static final long MB = 1024 * 1024;
+
+    //one tile being built, one interpolated and one spilled
+    private static final int TILES_IN_FLIGHT = 3;
+
+    //how often a stage waiting on a hand-off checks whether the stage on the other side failed
+    private static final long HAND_OFF_POLL_MS = 100;
+
+    private final Db db;
+    //null to keep the raw features
+    private final Interpolation interpolation;
+    private final long budgetBytes;
+    //write every AP pair in both orders
+    private final boolean legacyPairs;
+    //null to write values in full
+    private final Quantization quantization;
+
+    TiledBuilder(Db db, Interpolation interpolation, long tileMb, boolean legacyPairs, Quantization quantization) {
+        this.db = db;
+        this.interpolation = interpolation;
+        this.budgetBytes = Math.max(1, tileMb) * MB;
+        this.legacyPairs = legacyPairs;
+        this.quantization = quantization;
+    }
+
+    void build(String fpId, File outputFile, String format, BuildMetrics metrics) throws IOException {
+        build(fpId, null, outputFile, format, metrics);
+    }
+
+    /**
+     * Builds the features of one shard of the floorplan, a partial cache to merge with the other shards'.
+     *
+     * @param shard the shard to build, null for every feature
+     */
+    void build(String fpId, Shard shard, File outputFile, String format, BuildMetrics metrics) throws IOException {
+        Floorplan floorplan = db.readFloorplanReadings(fpId, metrics);
+        if(floorplan == null) {
+            return;
+        }
+        int[] limitXy = floorplan.limitXy;
+        int cells = FeatureGrid.cells(limitXy[0], limitXy[1]);
+
+        //a first pass with an empty tile names every pair without storing any value
+        long start = System.nanoTime();
+        FeatureGridBuilder dictionary = new FeatureGridBuilder(limitXy[0], limitXy[1], limitXy[2], limitXy[3],
+                Collections.<String>emptySet());
+        floorplan.readings.replay(dictionary);
+        List<String> features = dictionary.pairNames();
+        if(shard != null) {
+            ArrayList<String> inShard = new ArrayList<String>();
+            for(String feature : features) {
+                if(shard.contains(feature)) {
+                    inShard.add(feature);
+                }
+            }
+            features = inShard;
+        }
+
+        //the spill file is the binary output, so it holds legacy pairs in both orders, the reversed section right
+        //after its pair, and is quantized; JSON output expands and rounds them as it is written
+        boolean binary = format.equals("binary");
+        boolean spillBoth = binary && legacyPairs;
+        ArrayList<String> names = new ArrayList<String>();
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        for(String feature : features) {
+            ids.put(feature, names.size());
+            names.add(feature);
+            if(spillBoth) {
+                names.add(FeatureGrid.opposite(feature));
+            }
+        }
+        metrics.add(BuildMetrics.Phase.PAIRS, System.nanoTime() - start);
+        metrics.setFeatures(features.size(), interpolation != null ? features.size() : 0);
+
+        long scratchBytes = interpolation == null ? 0 : interpolation.scratchBytes(cells, db.parallelism());
+        List<HashSet<String>> tiles = planTiles(features, cells,
+                Math.max(0, budgetBytes - scratchBytes) / TILES_IN_FLIGHT);
+        metrics.setTiles(tiles.size());
+
+        File spillFile = binary
+                ? new File(outputFile.getPath() + ".tmp")
+                : File.createTempFile("features", ".tiles", outputFile.getAbsoluteFile().getParentFile());
+        try {
+            FeaturesCacheSectionWriter spill = new FeaturesCacheSectionWriter(spillFile,
+                    limitXy[0], limitXy[1], limitXy[2], limitXy[3], names, binary ? quantization : null,
+                    binary ? shard : null);
+            try {
+                buildTiles(floorplan, tiles, ids, spillBoth, spill, metrics);
+            } finally {
+                spill.close();
+            }
+
+            if(binary) {
+                Main.replace(spillFile, outputFile);
+            } else {
+                start = System.nanoTime();
+                writeJson(spillFile, outputFile);
+                metrics.add(BuildMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+            }
+        } finally {
+            spillFile.delete();
+        }
+    }
+
+    /**
+     * Groups the features into tiles whose grids fit in tileBytes. A feature larger than that gets a tile of its
+     * own.
+     */
+    private List<HashSet<String>> planTiles(List<String> features, int cells, long tileBytes) {
+        ArrayList<HashSet<String>> tiles = new ArrayList<HashSet<String>>();
+        HashSet<String> tile = new HashSet<String>();
+        long bytes = 0;
+        long featureBytes = cells * 4L;
+        for(String feature : features) {
+            if(!tile.isEmpty() && bytes + featureBytes > tileBytes) {
+                tiles.add(tile);
+                tile = new HashSet<String>();
+                bytes = 0;
+            }
+            tile.add(feature);
+            bytes += featureBytes;
+        }
+        if(!tile.isEmpty()) {
+            tiles.add(tile);
+        }
+        return tiles;
+    }
+
+    /**
+     * Runs every tile through the build, interpolate and spill stages. Stages hand tiles over through synchronous
+     * queues, so a stage that is ahead waits for the next one and no more than one tile per stage is in memory.
+     */
+    private void buildTiles(final Floorplan floorplan, final List<HashSet<String>> tiles,
+                            final HashMap<String, Integer> ids, final boolean spillBoth,
+                            final FeaturesCacheSectionWriter spill, final BuildMetrics metrics) throws IOException {
+        final SynchronousQueue<Floorplan> built = new SynchronousQueue<Floorplan>();
+        final SynchronousQueue<FeatureGrid> interpolated = new SynchronousQueue<FeatureGrid>();
+        ExecutorService stages = Executors.newFixedThreadPool(2);
+        try {
+            Future<Void> building = stages.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    for(HashSet<String> tile : tiles) {
+                        built.put(buildTile(floorplan, tile, metrics));
+                    }
+                    return null;
+                }
+            });
+            Future<Void> spilling = stages.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    for(int i = 0; i < tiles.size(); i++) {
+                        spillTile(interpolated.take(), ids, spillBoth, spill, metrics);
+                    }
+                    return null;
+                }
+            });
+
+            for(int i = 0; i < tiles.size(); i++) {
+                Floorplan tile = take(built, building);
+                if(interpolation != null) {
+                    db.interpolate(tile, tile.features, interpolation, metrics);
+                }
+                put(interpolated, tile.grid, spilling);
+            }
+            await(spilling);
+            await(building);
+        } finally {
+            //interrupts the stages that are still waiting if this one failed
+            stages.shutdownNow();
+        }
+    }
+
+    private Floorplan buildTile(Floorplan floorplan, HashSet<String> tile, BuildMetrics metrics) {
+        int[] limitXy = floorplan.limitXy;
+
+        long start = System.nanoTime();
+        FeatureGridBuilder builder = new FeatureGridBuilder(limitXy[0], limitXy[1], limitXy[2], limitXy[3], tile);
+        floorplan.readings.replay(builder);
+        FeatureGrid grid = builder.grid();
+        metrics.add(BuildMetrics.Phase.PAIRS, System.nanoTime() - start);
+        return new Floorplan(floorplan.fpId, limitXy, floorplan.ignoredCoordinates, grid, builder.features());
+    }
+
+    private void spillTile(FeatureGrid grid, HashMap<String, Integer> ids, boolean spillBoth,
+                           FeaturesCacheSectionWriter spill, BuildMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        for(int feature = 0; feature < grid.featureCount(); feature++) {
+            int section = ids.get(grid.name(feature));
+            spill.write(section, grid.values(), grid.offset(feature));
+            if(spillBoth) {
+                spill.write(section + 1, grid.values(), grid.offset(feature));
+            }
+        }
+        metrics.add(BuildMetrics.Phase.SERIALIZE, System.nanoTime() - start);
+    }
+
+    /**
+     * Waits for the producer stage's next tile, or fails with the producer.
+     */
+    private static <T> T take(SynchronousQueue<T> queue, Future<Void> producer) throws IOException {
+        try {
+            while(true) {
+                T tile = queue.poll(HAND_OFF_POLL_MS, TimeUnit.MILLISECONDS);
+                if(tile != null) {
+                    return tile;
+                }
+                if(producer.isDone()) {
+                    await(producer);
+                    throw new IOException("Tile stage ended before its last tile");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a tile");
+        }
+    }
+
+    /**
+     * Hands a tile to the consumer stage once it takes it, or fails with the consumer.
+     */
+    private static <T> void put(SynchronousQueue<T> queue, T tile, Future<Void> consumer) throws IOException {
+        try {
+            while(!queue.offer(tile, HAND_OFF_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if(consumer.isDone()) {
+                    await(consumer);
+                    throw new IOException("Tile stage ended before its last tile");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over a tile");
+        }
+    }
+
+    /**
+     * Waits for a stage to finish and rethrows what it failed with.
+     */
+    private static void await(Future<Void> stage) throws IOException {
+        try {
+            stage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a tile stage");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Tile stage failed", cause);
+        }
+    }
+
+    private void writeJson(File spillFile, File outputFile) throws IOException {
+        FeaturesCacheReader cache = new FeaturesCacheReader(spillFile);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile));
+            try {
+                new FeaturesCacheJsonWriter(out, legacyPairs, quantization).write(cache);
+            } finally {
+                out.close();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package cache;
+
+import com.jsoniter.output.JsonStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters of one features cache build, written as a JSON sidecar next to the cache.
+ *
+ * Everything that records goes through an instance, and {@link #DISABLED} ignores every call. Callers check
+ * {@link #enabled()} before reading the clock in loops, so a build without metrics only pays for the checks.
+ */
+public class BuildMetrics {
+
+    public static final BuildMetrics DISABLED = new BuildMetrics(null, false);
+
+    //counts the bytes every thread allocates, null when the JVM does not
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+
+    /**
+     * Phases of a build. Interpolate is wall time. Interpolation overlaps serialization, and in tiled builds pair
+     * building too, so the phases can add up to more than the total.
+     */
+    public enum Phase {
+        QUERY, PAIRS, INTERPOLATE, SERIALIZE;
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static class Worker {
+        final AtomicLong tasks = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong allocatedBytes = new AtomicLong();
+    }
+
+    private final String fpId;
+    private final boolean enabled;
+    private final long startNanos;
+    private long totalNanos;
+    private long peakHeapBytes;
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong features = new AtomicLong();
+    private final AtomicLong featuresInterpolated = new AtomicLong();
+    //tiles of a tiled build, 0 otherwise
+    private final AtomicLong tiles = new AtomicLong();
+    private final AtomicLong cellsInterpolated = new AtomicLong();
+    private final AtomicLong cellsExtrapolated = new AtomicLong();
+    private final ConcurrentHashMap<String, Worker> workers = new ConcurrentHashMap<String, Worker>();
+
+    private BuildMetrics(String fpId, boolean enabled) {
+        this.fpId = fpId;
+        this.enabled = enabled;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Starts measuring a build. The heap peak is tracked for the whole JVM, so builds running at the same time
+     * see each other's allocations.
+     */
+    public static BuildMetrics start(String fpId) {
+        for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(memoryPool.getType() == MemoryType.HEAP && memoryPool.isValid()) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+        return new BuildMetrics(fpId, true);
+    }
+
+    private static com.sun.management.ThreadMXBean allocations() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if(!allocations.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        return allocations;
+    }
+
+    /**
+     * @return the bytes the current thread allocated so far, 0 if the JVM does not count them
+     */
+    public static long allocatedBytes() {
+        return ALLOCATIONS == null ? 0 : ALLOCATIONS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * @return the sidecar file of a features cache, the cache file name with .metrics.json appended
+     */
+    public static File fileFor(File cacheFile) {
+        return new File(cacheFile.getPath() + ".metrics.json");
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public void add(Phase phase, long nanos) {
+        if(enabled) {
+            phaseNanos.addAndGet(phase.ordinal(), nanos);
+        }
+    }
+
+    public void addRowsRead(long rows) {
+        if(enabled) {
+            rowsRead.addAndGet(rows);
+        }
+    }
+
+    public void setFeatures(int produced, int interpolated) {
+        if(enabled) {
+            features.set(produced);
+            featuresInterpolated.set(interpolated);
+        }
+    }
+
+    public void setTiles(int count) {
+        if(enabled) {
+            tiles.set(count);
+        }
+    }
+
+    public void addCells(long interpolated, long extrapolated) {
+        if(enabled) {
+            cellsInterpolated.addAndGet(interpolated);
+            cellsExtrapolated.addAndGet(extrapolated);
+        }
+    }
+
+    /**
+     * Records one task run by the current thread, a feature or a band of rows of one.
+     *
+     * @param waitNanos time between the task being forked and a worker picking it up
+     * @param busyNanos time the worker spent running it
+     * @param allocatedBytes bytes the worker allocated while running it, which the interpolation should keep
+     * close to nothing per cell
+     */
+    public void addTask(long waitNanos, long busyNanos, long allocatedBytes) {
+        if(!enabled) {
+            return;
+        }
+        String name = Thread.currentThread().getName();
+        Worker worker = workers.get(name);
+        if(worker == null) {
+            workers.putIfAbsent(name, new Worker());
+            worker = workers.get(name);
+        }
+        worker.tasks.incrementAndGet();
+        worker.waitNanos.addAndGet(waitNanos);
+        worker.busyNanos.addAndGet(busyNanos);
+        worker.allocatedBytes.addAndGet(allocatedBytes);
+    }
+
+    /**
+     * Stops the build clock, samples the heap peak and writes the sidecar of cacheFile. Called once the cache
+     * is written.
+     */
+    public void finish(File cacheFile) throws IOException {
+        if(!enabled) {
+            return;
+        }
+        totalNanos = System.nanoTime() - startNanos;
+        long peak = 0;
+        for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(memoryPool.getType() == MemoryType.HEAP && memoryPool.isValid()) {
+                peak += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        peakHeapBytes = peak;
+        write(fileFor(cacheFile));
+    }
+
+    public void write(File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        JsonStream stream = new JsonStream(out, 4096);
+        stream.writeObjectStart();
+        stream.writeObjectField("floorplan");
+        stream.writeVal(fpId);
+        stream.writeMore();
+        stream.writeObjectField("totalMs");
+        stream.writeVal(millis(totalNanos));
+        stream.writeMore();
+
+        stream.writeObjectField("phasesMs");
+        stream.writeObjectStart();
+        for(Phase phase : Phase.values()) {
+            if(phase.ordinal() > 0) {
+                stream.writeMore();
+            }
+            stream.writeObjectField(phase.key());
+            stream.writeVal(millis(phaseNanos.get(phase.ordinal())));
+        }
+        stream.writeObjectEnd();
+        stream.writeMore();
+
+        stream.writeObjectField("rowsRead");
+        stream.writeVal(rowsRead.get());
+        stream.writeMore();
+        stream.writeObjectField("features");
+        stream.writeVal(features.get());
+        stream.writeMore();
+        stream.writeObjectField("featuresInterpolated");
+        stream.writeVal(featuresInterpolated.get());
+        stream.writeMore();
+        stream.writeObjectField("tiles");
+        stream.writeVal(tiles.get());
+        stream.writeMore();
+        stream.writeObjectField("cellsInterpolated");
+        stream.writeVal(cellsInterpolated.get());
+        stream.writeMore();
+        stream.writeObjectField("cellsExtrapolated");
+        stream.writeVal(cellsExtrapolated.get());
+        stream.writeMore();
+        stream.writeObjectField("peakHeapBytes");
+        stream.writeVal(peakHeapBytes);
+        stream.writeMore();
+        long allocated = 0;
+        for(Worker worker : workers.values()) {
+            allocated += worker.allocatedBytes.get();
+        }
+        long cells = cellsInterpolated.get() + cellsExtrapolated.get();
+        stream.writeObjectField("interpolationAllocatedBytesPerCell");
+        stream.writeVal(cells == 0 ? 0.0 : (double) allocated / cells);
+        stream.writeMore();
+
+        stream.writeObjectField("workers");
+        stream.writeObjectStart();
+        boolean first = true;
+        for(Map.Entry<String, Worker> entry : new TreeMap<String, Worker>(workers).entrySet()) {
+            if(!first) {
+                stream.writeMore();
+            }
+            first = false;
+            Worker worker = entry.getValue();
+            stream.writeObjectField(entry.getKey());
+            stream.writeObjectStart();
+            stream.writeObjectField("tasks");
+            stream.writeVal(worker.tasks.get());
+            stream.writeMore();
+            stream.writeObjectField("busyMs");
+            stream.writeVal(millis(worker.busyNanos.get()));
+            stream.writeMore();
+            stream.writeObjectField("queueWaitMs");
+            stream.writeVal(millis(worker.waitNanos.get()));
+            stream.writeMore();
+            stream.writeObjectField("allocatedBytes");
+            stream.writeVal(worker.allocatedBytes.get());
+            stream.writeObjectEnd();
+        }
+        stream.writeObjectEnd();
+
+        stream.writeObjectEnd();
+        stream.flush();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
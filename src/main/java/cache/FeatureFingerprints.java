@@ -0,0 +1,164 @@
+package cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Hashes of the raw inputs of every interpolated feature, stored next to a cache so the next build can tell
+ * which features have to be interpolated again.
+ *
+ * A feature hash covers every raw value of the feature and where it is. The grid hash covers the bounds, the
+ * ignored coordinates and the interpolation engine, which every feature depends on; when they change nothing can be
+ * reused. The file is plain text: a "grid" line followed by one "feature hash" line per feature.
+ */
+public class FeatureFingerprints {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long grid;
+    private final HashMap<String, Long> features;
+
+    private FeatureFingerprints(long grid, HashMap<String, Long> features) {
+        this.grid = grid;
+        this.features = features;
+    }
+
+    /**
+     * Fingerprints the raw, not yet interpolated, values of the given features.
+     *
+     * @param interpolation 0 when the features are not interpolated, otherwise a number for the engine
+     */
+    public static FeatureFingerprints compute(FeatureGrid featureGrid, int[] features, IgnoredCoordinates ignored,
+                                              int interpolation) {
+        long grid = FNV_OFFSET;
+        grid = mix(grid, featureGrid.maxX());
+        grid = mix(grid, featureGrid.maxY());
+        grid = mix(grid, featureGrid.minX());
+        grid = mix(grid, featureGrid.minY());
+        grid = mix(grid, interpolation);
+        for(int x = 0; x <= ignored.maxX(); x++) {
+            for(int y = 0; y <= ignored.maxY(); y++) {
+                if(ignored.ignored(x, y)) {
+                    grid = mix(grid, y * featureGrid.width() + x);
+                }
+            }
+        }
+
+        HashMap<String, Long> hashes = new HashMap<String, Long>();
+        float[] values = featureGrid.values();
+        int cells = featureGrid.cells();
+        for(int feature : features) {
+            int offset = featureGrid.offset(feature);
+            long hash = FNV_OFFSET;
+            for(int cell = 0; cell < cells; cell++) {
+                if(!Float.isNaN(values[offset + cell])) {
+                    hash = mix(hash, cell);
+                    hash = mix(hash, Float.floatToIntBits(values[offset + cell]));
+                }
+            }
+            hashes.put(featureGrid.name(feature), hash);
+        }
+        return new FeatureFingerprints(grid, hashes);
+    }
+
+    private static long mix(long hash, int value) {
+        for(int shift = 0; shift < 32; shift += 8) {
+            hash ^= (value >>> shift) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the feature's inputs are the same as in the previous build, so its values can be reused
+     */
+    public boolean unchanged(FeatureFingerprints previous, String feature) {
+        if(previous == null || previous.grid != grid) {
+            return false;
+        }
+        Long hash = features.get(feature);
+        return hash != null && hash.equals(previous.features.get(feature));
+    }
+
+    /**
+     * @return one hash of the grid and every feature, equal for two builds only if all their inputs are
+     */
+    public long digest() {
+        ArrayList<String> names = new ArrayList<String>(features.keySet());
+        Collections.sort(names);
+        long hash = grid;
+        for(String name : names) {
+            hash = mix(hash, name.hashCode());
+            long feature = features.get(name);
+            hash = mix(hash, (int) feature);
+            hash = mix(hash, (int) (feature >>> 32));
+        }
+        return hash;
+    }
+
+    /**
+     * @return the fingerprints file that belongs to a cache file
+     */
+    public static File fileFor(File cacheFile) {
+        return new File(cacheFile.getPath() + ".fingerprints");
+    }
+
+    /**
+     * @return the saved fingerprints, or null if the file does not exist or cannot be read
+     */
+    public static FeatureFingerprints load(File file) {
+        if(!file.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                String line = reader.readLine();
+                if(line == null || !line.startsWith("grid ")) {
+                    return null;
+                }
+                long grid = Long.parseUnsignedLong(line.substring(5), 16);
+                HashMap<String, Long> hashes = new HashMap<String, Long>();
+                while((line = reader.readLine()) != null) {
+                    int space = line.lastIndexOf(' ');
+                    if(space > 0) {
+                        hashes.put(line.substring(0, space), Long.parseUnsignedLong(line.substring(space + 1), 16));
+                    }
+                }
+                return new FeatureFingerprints(grid, hashes);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            writer.write("grid " + Long.toHexString(grid));
+            writer.newLine();
+            for(String feature : features.keySet()) {
+                writer.write(feature + " " + Long.toHexString(features.get(feature)));
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
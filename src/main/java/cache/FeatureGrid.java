@@ -0,0 +1,219 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Dense storage for every AP pair feature of a floorplan, one feature per unordered pair of APs.
+ *
+ * Feature names are interned to int ids and all values live in one flat float array laid out as
+ * [featureId][y][x], so a scan along a row of one feature walks contiguous memory. Absent values are NaN.
+ *
+ * One array holds at most {@link #MAX_VALUES} values, so interning refuses a feature that would not fit. Floorplans
+ * past that are built in tiles or shards, which each hold a part of the features.
+ */
+public class FeatureGrid {
+
+    //the largest float array the VMs allocate
+    public static final int MAX_VALUES = Integer.MAX_VALUE - 8;
+
+    private final int maxX;
+    private final int maxY;
+    private final int minX;
+    private final int minY;
+    private final int width;
+    private final int height;
+    private final int cells;
+
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> names = new ArrayList<String>();
+    private float[] values;
+
+    /**
+     * The grid always starts at 0, 0 so it has maxX + 1 columns and maxY + 1 rows. minX and minY are the smallest
+     * coordinates that have readings, as returned by the limits query.
+     */
+    public FeatureGrid(int maxX, int maxY, int minX, int minY) {
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.minX = minX;
+        this.minY = minY;
+        this.width = maxX + 1;
+        this.height = maxY + 1;
+        this.cells = cells(maxX, maxY);
+        this.values = new float[0];
+    }
+
+    /**
+     * @return the cells of a grid from 0, 0 to maxX, maxY
+     * @throws IllegalArgumentException if they do not fit in an int
+     */
+    public static int cells(int maxX, int maxY) {
+        long cells = ((long) maxX + 1) * ((long) maxY + 1);
+        if(cells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException((maxX + 1L) + " by " + (maxY + 1L) + " cells do not fit in one grid");
+        }
+        return (int) cells;
+    }
+
+    public int maxX() {
+        return maxX;
+    }
+
+    public int maxY() {
+        return maxY;
+    }
+
+    public int minX() {
+        return minX;
+    }
+
+    public int minY() {
+        return minY;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int cells() {
+        return cells;
+    }
+
+    /**
+     * @return the name the pair of two APs is stored under, the two AP ids in ascending order
+     */
+    public static String pair(String apA, String apB) {
+        return apA.compareTo(apB) <= 0 ? apA + apB : apB + apA;
+    }
+
+    /**
+     * @return the name an ap1 + ap2 feature is stored under, whichever order it is given in
+     */
+    public static String canonical(String feature) {
+        return pair(feature.substring(0, 17), feature.substring(17));
+    }
+
+    /**
+     * @return the ap2 + ap1 feature of an ap1 + ap2 feature, AP ids being 17 character MAC addresses
+     */
+    public static String opposite(String feature) {
+        String ap1 = feature.substring(0, 17);
+        String ap2 = feature.substring(17);
+        return ap2 + ap1;
+    }
+
+    public int featureCount() {
+        return names.size();
+    }
+
+    public String name(int feature) {
+        return names.get(feature);
+    }
+
+    /**
+     * @return the id of the feature or -1 if it has never been interned
+     */
+    public int id(String feature) {
+        Integer id = ids.get(feature);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the id of the feature, allocating an empty slice for it the first time it is seen.
+     * Not thread safe, all interning must happen before the grid is shared.
+     */
+    public int intern(String feature) {
+        Integer id = ids.get(feature);
+        if(id != null) {
+            return id;
+        }
+        id = names.size();
+        ensureCapacity(id + 1);
+        ids.put(feature, id);
+        names.add(feature);
+        return id;
+    }
+
+    /**
+     * Allocates room for the given number of features up front, so interning them does not over-allocate.
+     */
+    public void reserve(int features) {
+        ensureCapacity(features);
+    }
+
+    /**
+     * @throws IllegalStateException if the features need more than {@link #MAX_VALUES} values
+     */
+    private void ensureCapacity(int features) {
+        long needed = (long) features * cells;
+        if(needed > MAX_VALUES) {
+            throw new IllegalStateException(features + " features of " + cells + " cells do not fit in one grid, "
+                    + "build the floorplan in tiles with -T/--tilememory or in shards with -s/--shard");
+        }
+        if(needed <= values.length) {
+            return;
+        }
+        int capacity = (int) Math.min(MAX_VALUES, Math.max(needed, (long) values.length * 2));
+        int used = values.length;
+        values = Arrays.copyOf(values, capacity);
+        Arrays.fill(values, used, capacity, Float.NaN);
+    }
+
+    /**
+     * @return index of the first cell of the feature in {@link #values()}
+     */
+    public int offset(int feature) {
+        return checkedOffset(feature);
+    }
+
+    public int index(int feature, int x, int y) {
+        return checkedOffset(feature) + y * width + x;
+    }
+
+    //interned features always fit in an int, an id past them must not wrap into another feature's slice
+    private int checkedOffset(int feature) {
+        long offset = (long) feature * cells;
+        if(offset > MAX_VALUES) {
+            throw new IndexOutOfBoundsException("Feature " + feature + " of " + cells + " cells is past the grid");
+        }
+        return (int) offset;
+    }
+
+    public float get(int feature, int x, int y) {
+        return values[index(feature, x, y)];
+    }
+
+    public boolean has(int feature, int x, int y) {
+        return !Float.isNaN(values[index(feature, x, y)]);
+    }
+
+    public void set(int feature, int x, int y, float value) {
+        values[index(feature, x, y)] = value;
+    }
+
+    /**
+     * @return true if any feature has a value at the coordinate
+     */
+    public boolean hasAny(int x, int y) {
+        int cell = y * width + x;
+        for(int f = 0; f < names.size(); f++) {
+            if(!Float.isNaN(values[f * cells + cell])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The backing array, exposed so the interpolators can scan a feature without a call per cell.
+     */
+    public float[] values() {
+        return values;
+    }
+}
@@ -0,0 +1,196 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds the AP pair features of a floorplan from its kalman estimates.
+ *
+ * Readings have to arrive grouped by coordinate, as the kalman query returns them sorted by x and y. The
+ * readings of the current cell are kept until the next cell starts and pairs are only built inside a cell, so
+ * the cost grows with the square of the APs per cell rather than the square of all readings.
+ *
+ * A pair's value is |a - b| whichever way round it is read, so every unordered pair is stored once, under
+ * {@link FeatureGrid#pair(String, String)}, and the zero an AP has with itself is not stored at all.
+ *
+ * AP ids are interned to ints as they are read and the current cell is held in primitive columns. The grid id of
+ * every AP pair is resolved once, the first time the pair is seen, so no strings are built per reading.
+ *
+ * A builder can be limited to a set of features, one tile of a tiled build. It still sees every pair, so
+ * {@link #pairNames()} covers the whole floorplan, but only stores values for the features in its tile. A builder
+ * can likewise be limited to one {@link Shard} of a build split across processes.
+ */
+public class FeatureGridBuilder implements ReadingSink {
+
+    private static final int UNSEEN = -1;
+    //pair seen but outside the tile
+    private static final int SKIPPED = -2;
+
+    private final FeatureGrid grid;
+    //features to store, null for all of them
+    private final Set<String> only;
+    //shard to store, null for all of them
+    private final Shard shard;
+    //every pair in the order it was first seen, which is the order the full grid interns them in
+    private final ArrayList<String> pairNames = new ArrayList<String>();
+
+    //AP ids in the order they were first read
+    private final HashMap<String, Integer> apIds = new HashMap<String, Integer>();
+    private final ArrayList<String> apNames = new ArrayList<String>();
+
+    //pairCapacity x pairCapacity table indexed by apA * pairCapacity + apB
+    private int pairCapacity = 0;
+    //grid id of the pair of apA and apB, the same both ways round, UNSEEN until the pair is first seen
+    private int[] pairIds = new int[0];
+
+    private int bucketX = -1;
+    private int bucketY = -1;
+    private int bucketSize = 0;
+    private int[] bucketAps = new int[16];
+    private float[] bucketValues = new float[16];
+
+    public FeatureGridBuilder(int maxX, int maxY, int minX, int minY) {
+        this(maxX, maxY, minX, minY, null);
+    }
+
+    /**
+     * @param only the features to store values for, null for every feature
+     */
+    public FeatureGridBuilder(int maxX, int maxY, int minX, int minY, Set<String> only) {
+        this(maxX, maxY, minX, minY, only, null);
+    }
+
+    /**
+     * @param only the features to store values for, null for every feature
+     * @param shard the shard to store values for, null for every shard
+     */
+    public FeatureGridBuilder(int maxX, int maxY, int minX, int minY, Set<String> only, Shard shard) {
+        grid = new FeatureGrid(maxX, maxY, minX, minY);
+        this.only = only;
+        this.shard = shard;
+        if(only != null) {
+            grid.reserve(only.size());
+        }
+    }
+
+    @Override
+    public int ap(String apId) {
+        Integer ap = apIds.get(apId);
+        if(ap == null) {
+            ap = apNames.size();
+            apIds.put(apId, ap);
+            apNames.add(apId);
+            if(ap >= pairCapacity) {
+                growPairs(Math.max(16, pairCapacity * 2));
+            }
+        }
+        return ap;
+    }
+
+    /**
+     * Adds one reading. Every reading of a coordinate must be added before the next coordinate starts.
+     */
+    public void add(int x, int y, String apId, float value) {
+        add(x, y, ap(apId), value);
+    }
+
+    /**
+     * Adds one reading of an AP interned with {@link #ap(String)}.
+     */
+    @Override
+    public void add(int x, int y, int ap, float value) {
+        if(bucketSize > 0 && (bucketX != x || bucketY != y)) {
+            addPairFeatures();
+        }
+        bucketX = x;
+        bucketY = y;
+        //an AP read twice for a cell keeps its last value
+        for(int i = 0; i < bucketSize; i++) {
+            if(bucketAps[i] == ap) {
+                bucketValues[i] = value;
+                return;
+            }
+        }
+        if(bucketSize == bucketAps.length) {
+            int[] grownAps = new int[bucketAps.length * 2];
+            float[] grownValues = new float[bucketValues.length * 2];
+            System.arraycopy(bucketAps, 0, grownAps, 0, bucketSize);
+            System.arraycopy(bucketValues, 0, grownValues, 0, bucketSize);
+            bucketAps = grownAps;
+            bucketValues = grownValues;
+        }
+        bucketAps[bucketSize] = ap;
+        bucketValues[bucketSize] = value;
+        bucketSize++;
+    }
+
+    /**
+     * Adds the AP pair features for the current cell.
+     */
+    private void addPairFeatures() {
+        for(int i = 0; i < bucketSize; i++) {
+            int rowStart = bucketAps[i] * pairCapacity;
+            for(int j = i + 1; j < bucketSize; j++) {
+                int pair = rowStart + bucketAps[j];
+                int feature = pairIds[pair];
+                if(feature == UNSEEN) {
+                    String name = FeatureGrid.pair(apNames.get(bucketAps[i]), apNames.get(bucketAps[j]));
+                    pairNames.add(name);
+                    feature = (only == null || only.contains(name)) && (shard == null || shard.contains(name))
+                            ? grid.intern(name) : SKIPPED;
+                    pairIds[pair] = feature;
+                    pairIds[bucketAps[j] * pairCapacity + bucketAps[i]] = feature;
+                }
+                if(feature != SKIPPED) {
+                    grid.set(feature, bucketX, bucketY, Math.abs(bucketValues[i] - bucketValues[j]));
+                }
+            }
+        }
+        bucketSize = 0;
+    }
+
+    private void growPairs(int capacity) {
+        int[] grownIds = new int[capacity * capacity];
+        Arrays.fill(grownIds, UNSEEN);
+        for(int a = 0; a < pairCapacity; a++) {
+            System.arraycopy(pairIds, a * pairCapacity, grownIds, a * capacity, pairCapacity);
+        }
+        pairCapacity = capacity;
+        pairIds = grownIds;
+    }
+
+    /**
+     * Finishes the last cell.
+     *
+     * @return the grid with every raw AP pair feature
+     */
+    public FeatureGrid grid() {
+        if(bucketSize > 0) {
+            addPairFeatures();
+        }
+        return grid;
+    }
+
+    /**
+     * @return ids of every AP pair in the grid, the features to interpolate
+     */
+    public int[] features() {
+        grid();
+        int[] featureIds = new int[grid.featureCount()];
+        for(int feature = 0; feature < featureIds.length; feature++) {
+            featureIds[feature] = feature;
+        }
+        return featureIds;
+    }
+
+    /**
+     * @return the name of every AP pair read, including pairs outside the tile, in the order they were first seen
+     */
+    public List<String> pairNames() {
+        grid();
+        return pairNames;
+    }
+}
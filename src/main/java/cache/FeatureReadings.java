@@ -0,0 +1,72 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The raw kalman estimates of a floorplan kept in primitive columns, so features can be built from them more
+ * than once, a tile at a time, without going back to the database.
+ */
+public class FeatureReadings implements ReadingSink {
+
+    private final HashMap<String, Integer> apIds = new HashMap<String, Integer>();
+    private final ArrayList<String> apNames = new ArrayList<String>();
+
+    private int size = 0;
+    private int[] xs = new int[1024];
+    private int[] ys = new int[1024];
+    private int[] aps = new int[1024];
+    private float[] values = new float[1024];
+
+    @Override
+    public int ap(String apId) {
+        Integer ap = apIds.get(apId);
+        if(ap == null) {
+            ap = apNames.size();
+            apIds.put(apId, ap);
+            apNames.add(apId);
+        }
+        return ap;
+    }
+
+    @Override
+    public void add(int x, int y, int ap, float value) {
+        if(size == xs.length) {
+            int capacity = size * 2;
+            int[] grownXs = new int[capacity];
+            int[] grownYs = new int[capacity];
+            int[] grownAps = new int[capacity];
+            float[] grownValues = new float[capacity];
+            System.arraycopy(xs, 0, grownXs, 0, size);
+            System.arraycopy(ys, 0, grownYs, 0, size);
+            System.arraycopy(aps, 0, grownAps, 0, size);
+            System.arraycopy(values, 0, grownValues, 0, size);
+            xs = grownXs;
+            ys = grownYs;
+            aps = grownAps;
+            values = grownValues;
+        }
+        xs[size] = x;
+        ys[size] = y;
+        aps[size] = ap;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds every reading to the sink in the order it was read.
+     */
+    public void replay(ReadingSink sink) {
+        int[] sinkAps = new int[apNames.size()];
+        for(int ap = 0; ap < sinkAps.length; ap++) {
+            sinkAps[ap] = sink.ap(apNames.get(ap));
+        }
+        for(int i = 0; i < size; i++) {
+            sink.add(xs[i], ys[i], sinkAps[aps[i]], values[i]);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a {@link FeatureGrid} in the binary features cache format described by {@link FeaturesCacheFormat}.
+ *
+ * Every feature becomes a dense float32 matrix with a presence bitmap, so consumers can memory map the file and
+ * read values in place instead of parsing JSON.
+ *
+ * With a {@link Quantization} the values are written as fixed point codes of one or two bytes instead of floats.
+ *
+ * With legacy pairs every AP pair is written twice, under ap1 + ap2 and ap2 + ap1, for consumers that look
+ * features up by name in the layout that stored both orders.
+ */
+public class FeaturesCacheBinaryWriter implements FeaturesCacheWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final boolean legacyPairs;
+    //null for float32 values
+    private final Quantization quantization;
+    //null for a complete cache
+    private final Shard shard;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * @param legacyPairs write every AP pair in both orders
+     * @param quantization the fixed point encoding of the values, null for float32
+     * @param shard the shard of the features written, recorded so merge can tell a complete set of partial caches,
+     * null for a complete cache
+     */
+    public FeaturesCacheBinaryWriter(OutputStream out, boolean legacyPairs, Quantization quantization, Shard shard) {
+        this.out = out;
+        this.legacyPairs = legacyPairs;
+        this.quantization = quantization;
+        this.shard = shard;
+    }
+
+    @Override
+    public void write(FeatureGrid grid) throws IOException {
+        write(grid, new int[0], null);
+    }
+
+    /**
+     * Sections are written in dictionary order, each one as soon as its feature is finished. Features finished out of
+     * order are taken and remembered meanwhile, so the interpolation workers never wait on a section being written.
+     */
+    @Override
+    public void write(FeatureGrid grid, int[] pending, FinishedFeatures finished) throws IOException {
+        //the grid feature of every section, in the order of the dictionary
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<Integer> sections = new ArrayList<Integer>();
+        for(int feature = 0; feature < grid.featureCount(); feature++) {
+            names.add(grid.name(feature));
+            sections.add(feature);
+            if(legacyPairs) {
+                names.add(FeatureGrid.opposite(grid.name(feature)));
+                sections.add(feature);
+            }
+        }
+        writeHeader(grid.maxX(), grid.maxY(), grid.minX(), grid.minY(), names);
+
+        boolean[] done = new boolean[grid.featureCount()];
+        Arrays.fill(done, true);
+        for(int feature : pending) {
+            done[feature] = false;
+        }
+
+        for(int feature : sections) {
+            if(!done[feature]) {
+                //the sections so far go out while the writer waits
+                flushBuffer();
+                out.flush();
+                while(!done[feature]) {
+                    done[finished.take()] = true;
+                }
+            }
+            writeSection(grid.values(), grid.offset(feature), grid.cells());
+        }
+
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Merges the caches into one, a feature at a time, so only one feature's values are ever in memory.
+     */
+    @Override
+    public void write(List<FeaturesCacheReader> caches) throws IOException {
+        FeaturesCacheFormat.checkMergeable(caches);
+        FeaturesCacheReader first = caches.get(0);
+        ArrayList<String> names = new ArrayList<String>();
+        for(FeaturesCacheReader cache : caches) {
+            for(int feature = 0; feature < cache.featureCount(); feature++) {
+                names.add(cache.name(feature));
+                if(legacyPairs) {
+                    names.add(FeatureGrid.opposite(cache.name(feature)));
+                }
+            }
+        }
+        writeHeader(first.maxX(), first.maxY(), first.minX(), first.minY(), names);
+
+        int cells = first.width() * first.height();
+        float[] values = new float[cells];
+        for(FeaturesCacheReader cache : caches) {
+            for(int feature = 0; feature < cache.featureCount(); feature++) {
+                cache.feature(feature).get(values);
+                writeSection(values, 0, cells);
+                if(legacyPairs) {
+                    writeSection(values, 0, cells);
+                }
+            }
+        }
+
+        flushBuffer();
+        out.flush();
+    }
+
+    private void writeHeader(int maxX, int maxY, int minX, int minY, List<String> names) throws IOException {
+        ByteBuffer header = FeaturesCacheFormat.header(maxX, maxY, minX, minY, names, quantization, shard);
+        out.write(header.array(), 0, header.limit());
+        buffer.clear();
+    }
+
+    /**
+     * Writes the presence bitmap, the values and the padding of one section.
+     */
+    private void writeSection(float[] values, int offset, int cells) throws IOException {
+        for(int cell = 0; cell < cells; cell += 64) {
+            long word = 0;
+            int end = Math.min(cell + 64, cells);
+            for(int i = cell; i < end; i++) {
+                if(!Float.isNaN(values[offset + i])) {
+                    word |= 1L << (i - cell);
+                }
+            }
+            ensureRemaining(8);
+            buffer.putLong(word);
+        }
+
+        int valueBytes = quantization == null ? 4 : quantization.bytes();
+        for(int cell = 0; cell < cells; cell++) {
+            ensureRemaining(4);
+            if(quantization == null) {
+                buffer.putFloat(values[offset + cell]);
+            } else if(valueBytes == 1) {
+                buffer.put((byte) quantization.encode(values[offset + cell]));
+            } else {
+                buffer.putShort((short) quantization.encode(values[offset + cell]));
+            }
+        }
+
+        long bytes = FeaturesCacheFormat.bitmapBytes(cells) + (long) cells * valueBytes;
+        pad(FeaturesCacheFormat.sectionStride(cells, valueBytes) - bytes);
+    }
+
+    private long pad(long bytes) throws IOException {
+        for(long i = 0; i < bytes; i++) {
+            ensureRemaining(1);
+            buffer.put((byte) 0);
+        }
+        return bytes;
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if(buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+}
@@ -0,0 +1,155 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Layout of the binary features cache. Everything is little-endian.
+ *
+ * <pre>
+ * header      int magic "FCCB", int version, int maxX, int maxY, int minX, int minY, int featureCount,
+ *             int dataOffset
+ * dictionary  featureCount times: short byte length, UTF-8 feature name
+ * padding     zeros up to dataOffset, a multiple of {@link #ALIGNMENT}
+ * sections    featureCount times, {@link #sectionStride(int, int)} bytes each:
+ *             presence bitmap of ceil(cells / 64) longs, bit (y * width + x) set when the cell has a value,
+ *             cells float32 values in the same order with NaN for absent cells, zero padding to 8 bytes
+ * </pre>
+ *
+ * Version 2 is the quantized variant. Its header has four more fields after dataOffset: int valueBytes (1 or 2),
+ * float scale, float offset and an int of zero. Values are uint8 or uint16 {@link Quantization} codes instead of
+ * float32, with the largest code marking an absent cell.
+ *
+ * Version 3 is a partial cache, the features of one {@link Shard} of a sharded build. Its header has six more fields
+ * after dataOffset: int valueBytes (4 for float32, or 1 or 2 for quantized codes), float scale and float offset (0
+ * for float32), int shard index, int shard count and an int of zero.
+ *
+ * The grid starts at 0, 0 so width is maxX + 1 and cells is width * (maxY + 1). Sections have a fixed stride,
+ * so a reader can find any value with arithmetic alone.
+ */
+public final class FeaturesCacheFormat {
+
+    //"FCCB" read as a little-endian int
+    public static final int MAGIC = 0x42434346;
+    public static final int VERSION = 1;
+    public static final int QUANTIZED_VERSION = 2;
+    public static final int PARTIAL_VERSION = 3;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int QUANTIZED_HEADER_SIZE = 48;
+    public static final int PARTIAL_HEADER_SIZE = 56;
+    public static final int ALIGNMENT = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FeaturesCacheFormat() {
+    }
+
+    public static int bitmapBytes(int cells) {
+        return ((cells + 63) >>> 6) * 8;
+    }
+
+    public static long sectionStride(int cells, int valueBytes) {
+        long bytes = bitmapBytes(cells) + (long) cells * valueBytes;
+        return (bytes + 7) & ~7L;
+    }
+
+    static int align(int offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Encodes the header, the dictionary and the padding before the first section.
+     *
+     * @param quantization the encoding of the values, null for float32
+     * @param shard the shard of a partial cache, null for a complete one
+     * @return a buffer holding the first dataOffset bytes of the file, positioned at 0
+     */
+    static ByteBuffer header(int maxX, int maxY, int minX, int minY, List<String> names,
+                             Quantization quantization, Shard shard) {
+        byte[][] encoded = new byte[names.size()][];
+        int dictionaryBytes = 0;
+        for(int feature = 0; feature < encoded.length; feature++) {
+            encoded[feature] = names.get(feature).getBytes(UTF_8);
+            dictionaryBytes += 2 + encoded[feature].length;
+        }
+        int headerSize = shard != null ? PARTIAL_HEADER_SIZE
+                : quantization == null ? HEADER_SIZE : QUANTIZED_HEADER_SIZE;
+        int dataOffset = align(headerSize + dictionaryBytes);
+
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(shard != null ? PARTIAL_VERSION : quantization == null ? VERSION : QUANTIZED_VERSION);
+        header.putInt(maxX);
+        header.putInt(maxY);
+        header.putInt(minX);
+        header.putInt(minY);
+        header.putInt(encoded.length);
+        header.putInt(dataOffset);
+        if(shard != null) {
+            header.putInt(quantization == null ? 4 : quantization.bytes());
+            header.putFloat(quantization == null ? 0 : quantization.scale());
+            header.putFloat(quantization == null ? 0 : quantization.offset());
+            header.putInt(shard.index());
+            header.putInt(shard.count());
+            header.putInt(0);
+        } else if(quantization != null) {
+            header.putInt(quantization.bytes());
+            header.putFloat(quantization.scale());
+            header.putFloat(quantization.offset());
+            header.putInt(0);
+        }
+        for(byte[] name : encoded) {
+            header.putShort((short) name.length);
+            header.put(name);
+        }
+        header.clear();
+        return header;
+    }
+
+    /**
+     * Checks that caches can be merged into one: the partial caches of every shard of one sharded build, once each,
+     * with the same bounds in all of them and no feature in more than one.
+     */
+    static void checkMergeable(List<FeaturesCacheReader> caches) throws IOException {
+        if(caches.isEmpty()) {
+            throw new IOException("No features caches to merge");
+        }
+        FeaturesCacheReader first = caches.get(0);
+        HashSet<String> names = new HashSet<String>();
+        boolean[] shards = new boolean[first.shard() == null ? 0 : first.shard().count()];
+        for(int i = 0; i < caches.size(); i++) {
+            FeaturesCacheReader cache = caches.get(i);
+            Shard shard = cache.shard();
+            if(shard == null) {
+                throw new IOException("Features cache " + i + " is not the partial cache of a shard");
+            }
+            if(shard.count() != shards.length) {
+                throw new IOException("Features cache " + i + " is shard " + shard + ", not one of " + shards.length
+                        + " like cache 0");
+            }
+            if(shards[shard.index()]) {
+                throw new IOException("Shard " + shard + " is given more than once");
+            }
+            shards[shard.index()] = true;
+            if(cache.maxX() != first.maxX() || cache.maxY() != first.maxY()
+                    || cache.minX() != first.minX() || cache.minY() != first.minY()) {
+                throw new IOException("Features cache " + i + " has other bounds than cache 0");
+            }
+            for(int feature = 0; feature < cache.featureCount(); feature++) {
+                if(!names.add(cache.name(feature))) {
+                    throw new IOException("Feature " + cache.name(feature) + " is in more than one features cache");
+                }
+            }
+        }
+        for(int index = 0; index < shards.length; index++) {
+            if(!shards[index]) {
+                throw new IOException("Shard " + new Shard(index, shards.length) + " is missing");
+            }
+        }
+    }
+}
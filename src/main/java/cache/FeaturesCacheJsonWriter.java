@@ -0,0 +1,243 @@
+package cache;
+
+import com.jsoniter.output.JsonStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes a {@link FeatureGrid} as the JSON features cache, {"x_y": {"feature": value, ...}, ...}.
+ *
+ * The grid is walked once and every coordinate is written straight to the stream, so no intermediate maps or
+ * JSON string are built and memory use does not depend on the size of the output.
+ *
+ * With a {@link Quantization} every value is written with exactly its number of decimals.
+ *
+ * With legacy pairs every AP pair is written twice in each coordinate, under ap1 + ap2 and ap2 + ap1, for
+ * consumers that look features up by name in the layout that stored both orders.
+ */
+public class FeaturesCacheJsonWriter implements FeaturesCacheWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final boolean legacyPairs;
+    //null to write values in full
+    private final Quantization quantization;
+
+    public FeaturesCacheJsonWriter(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * @param legacyPairs write every AP pair in both orders
+     */
+    public FeaturesCacheJsonWriter(OutputStream out, boolean legacyPairs) {
+        this(out, legacyPairs, null);
+    }
+
+    /**
+     * @param quantization the decimals to round values to, null to write them in full
+     */
+    public FeaturesCacheJsonWriter(OutputStream out, boolean legacyPairs, Quantization quantization) {
+        this.out = out;
+        this.legacyPairs = legacyPairs;
+        this.quantization = quantization;
+    }
+
+    /**
+     * What the writer needs to know about a grid of features, so a grid in memory and a binary cache on disk
+     * are written by the same loop.
+     */
+    private interface Source {
+        int width();
+
+        int height();
+
+        int featureCount();
+
+        String name(int feature);
+
+        float get(int feature, int x, int y);
+
+        boolean hasAny(int x, int y);
+    }
+
+    @Override
+    public void write(final FeatureGrid grid) throws IOException {
+        write(new Source() {
+            @Override
+            public int width() {
+                return grid.width();
+            }
+
+            @Override
+            public int height() {
+                return grid.height();
+            }
+
+            @Override
+            public int featureCount() {
+                return grid.featureCount();
+            }
+
+            @Override
+            public String name(int feature) {
+                return grid.name(feature);
+            }
+
+            @Override
+            public float get(int feature, int x, int y) {
+                return grid.get(feature, x, y);
+            }
+
+            @Override
+            public boolean hasAny(int x, int y) {
+                return grid.hasAny(x, y);
+            }
+        });
+    }
+
+    /**
+     * Every coordinate holds a value of every feature, so nothing can be written before all of them are finished.
+     */
+    @Override
+    public void write(FeatureGrid grid, int[] pending, FinishedFeatures finished) throws IOException {
+        for(int i = 0; i < pending.length; i++) {
+            finished.take();
+        }
+        write(grid);
+    }
+
+    /**
+     * Writes a binary cache as JSON, reading the values in place from its mapping.
+     */
+    public void write(FeaturesCacheReader cache) throws IOException {
+        writeCaches(Collections.singletonList(cache));
+    }
+
+    /**
+     * Writes binary caches as one JSON cache, reading the values in place from their mappings. Features are
+     * numbered through the caches one after another.
+     */
+    @Override
+    public void write(List<FeaturesCacheReader> caches) throws IOException {
+        FeaturesCacheFormat.checkMergeable(caches);
+        writeCaches(caches);
+    }
+
+    private void writeCaches(List<FeaturesCacheReader> caches) throws IOException {
+        final FeaturesCacheReader first = caches.get(0);
+        int features = 0;
+        for(FeaturesCacheReader cache : caches) {
+            features += cache.featureCount();
+        }
+        //the cache and the id in it of every feature
+        final FeaturesCacheReader[] owners = new FeaturesCacheReader[features];
+        final int[] ids = new int[features];
+        int feature = 0;
+        for(FeaturesCacheReader cache : caches) {
+            for(int id = 0; id < cache.featureCount(); id++) {
+                owners[feature] = cache;
+                ids[feature++] = id;
+            }
+        }
+
+        write(new Source() {
+            @Override
+            public int width() {
+                return first.width();
+            }
+
+            @Override
+            public int height() {
+                return first.height();
+            }
+
+            @Override
+            public int featureCount() {
+                return owners.length;
+            }
+
+            @Override
+            public String name(int feature) {
+                return owners[feature].name(ids[feature]);
+            }
+
+            @Override
+            public float get(int feature, int x, int y) {
+                return owners[feature].value(ids[feature], x, y);
+            }
+
+            @Override
+            public boolean hasAny(int x, int y) {
+                for(int feature = 0; feature < owners.length; feature++) {
+                    if(owners[feature].has(ids[feature], x, y)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    private void write(Source grid) throws IOException {
+        JsonStream stream = new JsonStream(out, BUFFER_SIZE);
+        int features = grid.featureCount();
+        String[] opposites = null;
+        if(legacyPairs) {
+            opposites = new String[features];
+            for(int feature = 0; feature < features; feature++) {
+                opposites[feature] = FeatureGrid.opposite(grid.name(feature));
+            }
+        }
+
+        stream.writeObjectStart();
+        boolean firstCell = true;
+        for(int x = 0; x < grid.width(); x++) {
+            for(int y = 0; y < grid.height(); y++) {
+                if(!grid.hasAny(x, y)) {
+                    continue;
+                }
+                if(!firstCell) {
+                    stream.writeMore();
+                }
+                firstCell = false;
+                stream.writeObjectField(Integer.toString(x) + "_" + Integer.toString(y));
+
+                stream.writeObjectStart();
+                boolean firstFeature = true;
+                for(int feature = 0; feature < features; feature++) {
+                    float value = grid.get(feature, x, y);
+                    if(Float.isNaN(value)) {
+                        continue;
+                    }
+                    if(!firstFeature) {
+                        stream.writeMore();
+                    }
+                    firstFeature = false;
+                    stream.writeObjectField(grid.name(feature));
+                    writeValue(stream, value);
+                    if(opposites != null) {
+                        stream.writeMore();
+                        stream.writeObjectField(opposites[feature]);
+                        writeValue(stream, value);
+                    }
+                }
+                stream.writeObjectEnd();
+            }
+        }
+        stream.writeObjectEnd();
+        stream.flush();
+    }
+
+    private void writeValue(JsonStream stream, float value) throws IOException {
+        if(quantization == null) {
+            stream.writeVal(value);
+        } else {
+            quantization.write(stream, value);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Reads a binary features cache written by {@link FeaturesCacheBinaryWriter} through a memory mapping.
+ *
+ * Only the feature dictionary is decoded when the file is opened; values are read in place from the mapping.
+ * Lookups use absolute reads and every view is a new buffer, so one reader can be shared by any number of
+ * threads.
+ *
+ * Quantized caches are decoded on every read. Consumers that work on the fixed point codes themselves read them
+ * in place through {@link #codes(int)}.
+ *
+ * Caches hold one feature per unordered AP pair, so a feature is found by its name in either AP order, whichever
+ * order the cache was written in.
+ */
+public class FeaturesCacheReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final int maxX;
+    private final int maxY;
+    private final int minX;
+    private final int minY;
+    private final int width;
+    private final int cells;
+    private final int bitmapBytes;
+    //4 for float32, else the width of the quantized codes
+    private final int valueBytes;
+    //null for float32 values
+    private final Quantization quantization;
+    //null for a complete cache
+    private final Shard shard;
+
+    private final String[] names;
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    //a mapping is limited to 2GB, so sections are mapped in chunks that each hold a whole number of them
+    private final MappedByteBuffer[] chunks;
+    private final int sectionsPerChunk;
+    private final int stride;
+
+    public FeaturesCacheReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if(channel.size() < FeaturesCacheFormat.HEADER_SIZE) {
+                throw new IOException("Not a binary features cache: " + path);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), FeaturesCacheFormat.PARTIAL_HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+
+            if(header.getInt() != FeaturesCacheFormat.MAGIC) {
+                throw new IOException("Not a binary features cache: " + path);
+            }
+            int version = header.getInt();
+            if(version != FeaturesCacheFormat.VERSION && version != FeaturesCacheFormat.QUANTIZED_VERSION
+                    && version != FeaturesCacheFormat.PARTIAL_VERSION) {
+                throw new IOException("Unsupported features cache version " + version + ": " + path);
+            }
+            maxX = header.getInt();
+            maxY = header.getInt();
+            minX = header.getInt();
+            minY = header.getInt();
+            int features = header.getInt();
+            int dataOffset = header.getInt();
+            int headerSize = FeaturesCacheFormat.HEADER_SIZE;
+            if(version != FeaturesCacheFormat.VERSION) {
+                boolean partial = version == FeaturesCacheFormat.PARTIAL_VERSION;
+                headerSize = partial ? FeaturesCacheFormat.PARTIAL_HEADER_SIZE
+                        : FeaturesCacheFormat.QUANTIZED_HEADER_SIZE;
+                if(header.remaining() < headerSize - FeaturesCacheFormat.HEADER_SIZE) {
+                    throw new IOException("Truncated features cache header: " + path);
+                }
+                int bytes = header.getInt();
+                float scale = header.getFloat();
+                float offset = header.getFloat();
+                try {
+                    if(bytes == 4 && partial) {
+                        quantization = null;
+                    } else if(bytes == 1 || bytes == 2) {
+                        quantization = Quantization.of(bytes, scale, offset);
+                    } else {
+                        throw new IOException("Unsupported quantized value width " + bytes + ": " + path);
+                    }
+                    shard = partial ? new Shard(header.getInt(), header.getInt()) : null;
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage() + ": " + path);
+                }
+                valueBytes = bytes;
+            } else {
+                quantization = null;
+                shard = null;
+                valueBytes = 4;
+            }
+
+            width = maxX + 1;
+            try {
+                cells = FeatureGrid.cells(maxX, maxY);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage() + ": " + path);
+            }
+            bitmapBytes = FeaturesCacheFormat.bitmapBytes(cells);
+            long sectionStride = FeaturesCacheFormat.sectionStride(cells, valueBytes);
+            if(sectionStride > Integer.MAX_VALUE) {
+                throw new IOException("Feature section too large to map: " + path);
+            }
+            stride = (int) sectionStride;
+
+            ByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, headerSize,
+                    dataOffset - headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            names = new String[features];
+            for(int feature = 0; feature < features; feature++) {
+                byte[] name = new byte[dictionary.getShort() & 0xffff];
+                dictionary.get(name);
+                names[feature] = new String(name, UTF_8);
+                ids.put(names[feature], feature);
+            }
+
+            sectionsPerChunk = Math.max(1, Integer.MAX_VALUE / stride);
+            chunks = new MappedByteBuffer[(features + sectionsPerChunk - 1) / sectionsPerChunk];
+            for(int i = 0; i < chunks.length; i++) {
+                int sections = Math.min(sectionsPerChunk, features - i * sectionsPerChunk);
+                long start = dataOffset + (long) i * sectionsPerChunk * stride;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, (long) sections * stride);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch(IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int maxX() {
+        return maxX;
+    }
+
+    public int maxY() {
+        return maxY;
+    }
+
+    public int minX() {
+        return minX;
+    }
+
+    public int minY() {
+        return minY;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return maxY + 1;
+    }
+
+    public int featureCount() {
+        return names.length;
+    }
+
+    public String name(int feature) {
+        return names[feature];
+    }
+
+    /**
+     * @return the fixed point encoding of the values, null if they are float32
+     */
+    public Quantization quantization() {
+        return quantization;
+    }
+
+    /**
+     * @return the shard whose features a partial cache holds, null for a complete cache
+     */
+    public Shard shard() {
+        return shard;
+    }
+
+    /**
+     * @return the id of the feature, falling back to the same AP pair in the other order, or -1 if the cache has
+     * neither
+     */
+    public int id(String feature) {
+        Integer id = ids.get(feature);
+        if(id == null && feature.length() > 17) {
+            id = ids.get(FeatureGrid.opposite(feature));
+        }
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the id of the pair of apA and apB, or -1 if the cache does not have it
+     */
+    public int id(String apA, String apB) {
+        return id(apA + apB);
+    }
+
+    /**
+     * @return the value of the AP pair at the coordinate, NaN when the cache has no value there
+     */
+    public float value(int x, int y, String apA, String apB) {
+        int feature = id(apA, apB);
+        if(feature < 0) {
+            return Float.NaN;
+        }
+        return value(feature, x, y);
+    }
+
+    /**
+     * @return the value of the feature at the coordinate, NaN when the cache has no value there
+     */
+    public float value(int feature, int x, int y) {
+        if(x < 0 || x > maxX || y < 0 || y > maxY) {
+            return Float.NaN;
+        }
+        return decode(chunk(feature), valuesStart(feature) + (y * width + x) * valueBytes);
+    }
+
+    private float decode(ByteBuffer chunk, int position) {
+        if(quantization == null) {
+            return chunk.getFloat(position);
+        }
+        if(valueBytes == 1) {
+            return quantization.decode(chunk.get(position) & 0xff);
+        }
+        return quantization.decode(chunk.getShort(position) & 0xffff);
+    }
+
+    public boolean has(int feature, int x, int y) {
+        if(x < 0 || x > maxX || y < 0 || y > maxY) {
+            return false;
+        }
+        int cell = y * width + x;
+        long word = chunk(feature).getLong(sectionStart(feature) + (cell >>> 6) * 8);
+        return (word & (1L << (cell & 63))) != 0;
+    }
+
+    /**
+     * @return a read-only view of row y of the feature, x = 0 to maxX, NaN where absent, or a decoded copy of it
+     * for a quantized cache
+     */
+    public FloatBuffer row(int feature, int y) {
+        return floats(feature, y * width, width);
+    }
+
+    /**
+     * @return a read-only view of every value of the feature laid out as [y][x], NaN where absent, or a decoded
+     * copy of them for a quantized cache
+     */
+    public FloatBuffer feature(int feature) {
+        return floats(feature, 0, cells);
+    }
+
+    /**
+     * @return a read-only view of the stored values of the feature laid out as [y][x], little-endian float32 or
+     * {@link Quantization} codes of {@link Quantization#bytes()} each
+     */
+    public ByteBuffer codes(int feature) {
+        ByteBuffer view = chunk(feature).duplicate();
+        view.position(valuesStart(feature));
+        view.limit(valuesStart(feature) + cells * valueBytes);
+        return view.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return a read-only view of the feature's presence bitmap, bit (y * width + x) set when the cell has a value
+     */
+    public LongBuffer presence(int feature) {
+        ByteBuffer view = chunk(feature).duplicate();
+        view.position(sectionStart(feature));
+        view.limit(sectionStart(feature) + bitmapBytes);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().asReadOnlyBuffer();
+    }
+
+    private FloatBuffer floats(int feature, int cell, int length) {
+        int start = valuesStart(feature) + cell * valueBytes;
+        if(quantization != null) {
+            MappedByteBuffer chunk = chunk(feature);
+            FloatBuffer decoded = FloatBuffer.allocate(length);
+            for(int i = 0; i < length; i++) {
+                decoded.put(i, decode(chunk, start + i * valueBytes));
+            }
+            return decoded.asReadOnlyBuffer();
+        }
+        ByteBuffer view = chunk(feature).duplicate();
+        view.position(start);
+        view.limit(start + length * 4);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer chunk(int feature) {
+        return chunks[feature / sectionsPerChunk];
+    }
+
+    private int sectionStart(int feature) {
+        return (feature % sectionsPerChunk) * stride;
+    }
+
+    private int valuesStart(int feature) {
+        return sectionStart(feature) + bitmapBytes;
+    }
+
+    /**
+     * Closes the file. The mapping stays valid until it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
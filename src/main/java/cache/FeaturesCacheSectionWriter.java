@@ -0,0 +1,108 @@
+package cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Writes a binary features cache one feature section at a time, in any order, straight to a file.
+ *
+ * The header and dictionary are written when the file is created and the file is sized for every section up
+ * front, so sections can be written as soon as they are finished and never have to be held in memory together.
+ * Once every section has been written the file is a complete cache that {@link FeaturesCacheReader} can open.
+ * Values are float32, or fixed point codes with a {@link Quantization}.
+ */
+public class FeaturesCacheSectionWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int cells;
+    private final long dataOffset;
+    private final long stride;
+    //null for float32 values
+    private final Quantization quantization;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * @param quantization the fixed point encoding of the values, null for float32
+     * @param shard the shard of a partial cache, null for a complete one
+     */
+    public FeaturesCacheSectionWriter(File path, int maxX, int maxY, int minX, int minY, List<String> names,
+                                      Quantization quantization, Shard shard) throws IOException {
+        this.quantization = quantization;
+        cells = FeatureGrid.cells(maxX, maxY);
+        stride = FeaturesCacheFormat.sectionStride(cells, quantization == null ? 4 : quantization.bytes());
+        file = new RandomAccessFile(path, "rw");
+        try {
+            channel = file.getChannel();
+            ByteBuffer header = FeaturesCacheFormat.header(maxX, maxY, minX, minY, names, quantization, shard);
+            dataOffset = header.limit();
+            file.setLength(0);
+            file.setLength(dataOffset + names.size() * stride);
+            while(header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } catch(IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the section of a feature from cells values starting at offset, NaN where absent.
+     */
+    public void write(int feature, float[] values, int offset) throws IOException {
+        long position = dataOffset + feature * stride;
+
+        buffer.clear();
+        for(int cell = 0; cell < cells; cell += 64) {
+            long word = 0;
+            int end = Math.min(cell + 64, cells);
+            for(int i = cell; i < end; i++) {
+                if(!Float.isNaN(values[offset + i])) {
+                    word |= 1L << (i - cell);
+                }
+            }
+            if(buffer.remaining() < 8) {
+                position = flush(position);
+            }
+            buffer.putLong(word);
+        }
+        position = flush(position);
+
+        for(int cell = 0; cell < cells; cell++) {
+            if(buffer.remaining() < 4) {
+                position = flush(position);
+            }
+            if(quantization == null) {
+                buffer.putFloat(values[offset + cell]);
+            } else if(quantization.bytes() == 1) {
+                buffer.put((byte) quantization.encode(values[offset + cell]));
+            } else {
+                buffer.putShort((short) quantization.encode(values[offset + cell]));
+            }
+        }
+        flush(position);
+    }
+
+    private long flush(long position) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
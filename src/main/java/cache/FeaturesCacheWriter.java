@@ -0,0 +1,25 @@
+package cache;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes a finished {@link FeatureGrid} in one of the features cache output formats.
+ */
+public interface FeaturesCacheWriter {
+
+    void write(FeatureGrid grid) throws IOException;
+
+    /**
+     * Writes a grid whose pending features are still being interpolated, taking them from finished as they are
+     * done. Formats that can write a feature on its own write it right away, the others wait for all of them.
+     */
+    void write(FeatureGrid grid, int[] pending, FinishedFeatures finished) throws IOException;
+
+    /**
+     * Writes the partial binary caches of every shard of one sharded build as one cache.
+     *
+     * @throws IOException if a shard is missing or given twice, or the caches differ in bounds
+     */
+    void write(List<FeaturesCacheReader> caches) throws IOException;
+}
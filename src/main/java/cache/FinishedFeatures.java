@@ -0,0 +1,88 @@
+package cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands features from the stage that finishes them, the interpolator, to the stage that writes them, so a feature
+ * can be written while others are still being interpolated.
+ *
+ * The queue is bounded. A worker that finishes a feature while the queue is full waits for the writer to catch up.
+ * The writer must keep taking features while it waits for a particular one, or the workers could stall.
+ */
+public class FinishedFeatures {
+
+    private static final int FAILED = -1;
+
+    private final ArrayBlockingQueue<Integer> queue;
+    //set once the consumer gave up, finished features are dropped from then on
+    private volatile boolean abandoned = false;
+    //time the consumer spent waiting for a feature
+    private long waitNanos = 0;
+
+    public FinishedFeatures(int capacity) {
+        queue = new ArrayBlockingQueue<Integer>(capacity);
+    }
+
+    /**
+     * Hands over a finished feature, waiting while the queue is full.
+     */
+    public void finish(int feature) {
+        if(abandoned) {
+            return;
+        }
+        try {
+            queue.put(feature);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while handing over feature " + feature, e);
+        }
+    }
+
+    /**
+     * Tells the consumer that the remaining features will never be finished.
+     */
+    public void fail() {
+        try {
+            queue.put(FAILED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells the producer that the consumer failed and releases the workers waiting on the full queue.
+     */
+    public void abandon() {
+        abandoned = true;
+        queue.clear();
+    }
+
+    /**
+     * @return the next finished feature, waiting until there is one
+     * @throws IOException if the producer failed
+     */
+    public int take() throws IOException {
+        long start = System.nanoTime();
+        int feature;
+        try {
+            feature = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a finished feature");
+        }
+        waitNanos += System.nanoTime() - start;
+        if(feature == FAILED) {
+            throw new IOException("Features could not be finished");
+        }
+        return feature;
+    }
+
+    /**
+     * @return the time the consumer spent in {@link #take()}
+     */
+    public long waitNanos() {
+        return waitNanos;
+    }
+}
@@ -0,0 +1,99 @@
+package cache;
+
+import com.jsoniter.JsonIterator;
+import com.jsoniter.any.Any;
+import com.jsoniter.spi.JsonException;
+
+import java.util.List;
+
+/**
+ * Coordinates of a floorplan layout that must never get a value, such as walls.
+ *
+ * One bit per cell, in a row of 64 bit words per y, so the interpolators can jump over runs of ignored cells a word
+ * at a time. A mask is never changed once it is parsed, so one mask can be shared by every worker and by every
+ * build of floorplans with the same layout.
+ */
+public final class IgnoredCoordinates {
+
+    private final int width;
+    private final int height;
+    //words per row
+    private final int words;
+    private final long[] bits;
+
+    /**
+     * A mask of the floorplan bounds with no ignored coordinate.
+     */
+    public IgnoredCoordinates(int maxX, int maxY) {
+        //a row has no more words than cells, so the words fit whenever the cells do
+        FeatureGrid.cells(maxX, maxY);
+        this.width = maxX + 1;
+        this.height = maxY + 1;
+        this.words = (width + 63) >>> 6;
+        this.bits = new long[height * words];
+    }
+
+    /**
+     * Marks every coordinate in the "ignore" list of the layout_image JSON documents. Layouts that are not valid
+     * JSON are skipped, a coordinate outside the floorplan ends the parse with what was marked so far.
+     */
+    public static IgnoredCoordinates parse(List<String> layoutStrings, int maxX, int maxY) {
+        IgnoredCoordinates ignored = new IgnoredCoordinates(maxX, maxY);
+        try {
+            for(String layoutString : layoutStrings) {
+                if(layoutString != null) {
+                    ignored.mark(layoutString);
+                }
+            }
+        } catch(IndexOutOfBoundsException e) { }
+        return ignored;
+    }
+
+    private void mark(String layoutString) {
+        try {
+            Any layout = JsonIterator.deserialize(layoutString);
+
+            List<Any> ignores = layout.get("ignore").asList();
+            for(Any ignore : ignores) {
+                int x = ignore.get(0).toInt();
+                int y = ignore.get(1).toInt();
+                if(x < 0 || x >= width || y < 0 || y >= height) {
+                    throw new IndexOutOfBoundsException("Ignored coordinate " + x + ", " + y);
+                }
+                bits[y * words + (x >>> 6)] |= 1L << x;
+            }
+        }catch(JsonException e) { }
+    }
+
+    public int maxX() {
+        return width - 1;
+    }
+
+    public int maxY() {
+        return height - 1;
+    }
+
+    public boolean ignored(int x, int y) {
+        return (bits[y * words + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * @return the first x from x on in row y that is not ignored, or maxX + 1 if there is none
+     */
+    public int nextClear(int x, int y) {
+        if(x >= width) {
+            return width;
+        }
+        int base = y * words;
+        int word = x >>> 6;
+        long clear = ~bits[base + word] & (-1L << x);
+        while(clear == 0) {
+            if(++word == words) {
+                return width;
+            }
+            clear = ~bits[base + word];
+        }
+        //the unused bits past the end of a row are clear
+        return Math.min(width, (word << 6) + Long.numberOfTrailingZeros(clear));
+    }
+}
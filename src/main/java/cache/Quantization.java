@@ -0,0 +1,145 @@
+package cache;
+
+import com.jsoniter.output.JsonStream;
+
+import java.io.IOException;
+
+/**
+ * Fixed point feature values for caches that do not need full float precision. The kalman estimates the features
+ * are built from are only good to about a tenth of a dB.
+ *
+ * The binary format stores a value as the code round((value - offset) / scale). With no decimals the code is an
+ * unsigned byte, otherwise an unsigned short. The largest code of the width marks an absent value, and values past
+ * the range saturate just below it. JSON output writes values with exactly the kept decimals.
+ */
+public final class Quantization {
+
+    public static final int MAX_DECIMALS = 2;
+
+    private final int bytes;
+    private final float scale;
+    private final float offset;
+    private final int absent;
+    //fixed digits of the fraction of every JSON value, so no float is formatted per value
+    private final int decimals;
+    private final long unit;
+    private final String[] fractions;
+
+    Quantization(int bytes, float scale, float offset) {
+        this.bytes = bytes;
+        this.scale = scale;
+        this.offset = offset;
+        this.absent = (1 << (bytes * 8)) - 1;
+        this.decimals = Math.max(0, (int) Math.round(-Math.log10(scale)));
+        long unit = 1;
+        for(int i = 0; i < decimals; i++) {
+            unit *= 10;
+        }
+        this.unit = unit;
+        this.fractions = new String[(int) unit];
+        for(int i = 0; i < fractions.length; i++) {
+            String digits = Integer.toString(i);
+            while(digits.length() < decimals) {
+                digits = "0" + digits;
+            }
+            fractions[i] = "." + digits;
+        }
+    }
+
+    /**
+     * @return the quantization a cache header describes
+     * @throws IllegalArgumentException unless scale is a power of ten from 1 down to {@link #MAX_DECIMALS}
+     * decimals and offset is finite
+     */
+    static Quantization of(int bytes, float scale, float offset) {
+        double decimals = -Math.log10(scale);
+        //checked before constructing, which tabulates a fraction string per unit of the last decimal
+        if(!(scale > 0) || Float.isInfinite(scale) || Math.abs(decimals - Math.round(decimals)) > 1e-4
+                || Math.round(decimals) < 0 || Math.round(decimals) > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Unsupported quantization scale " + scale);
+        }
+        if(Float.isNaN(offset) || Float.isInfinite(offset)) {
+            throw new IllegalArgumentException("Unsupported quantization offset " + offset);
+        }
+        return new Quantization(bytes, scale, offset);
+    }
+
+    /**
+     * @return values rounded to a number of decimals from 0 to {@link #MAX_DECIMALS}, starting at 0
+     * @throws IllegalArgumentException for any other number of decimals
+     */
+    public static Quantization decimals(int decimals) {
+        if(decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Quantization keeps 0 to " + MAX_DECIMALS + " decimals, not "
+                    + decimals);
+        }
+        return new Quantization(decimals == 0 ? 1 : 2, (float) Math.pow(10, -decimals), 0);
+    }
+
+    /**
+     * @return bytes per stored value, 1 or 2
+     */
+    public int bytes() {
+        return bytes;
+    }
+
+    public float scale() {
+        return scale;
+    }
+
+    public float offset() {
+        return offset;
+    }
+
+    /**
+     * @return the code of an absent value
+     */
+    public int absent() {
+        return absent;
+    }
+
+    public int encode(float value) {
+        if(Float.isNaN(value)) {
+            return absent;
+        }
+        long code = Math.round((value - offset) / scale);
+        return (int) Math.max(0, Math.min(absent - 1, code));
+    }
+
+    public float decode(int code) {
+        if(code == absent) {
+            return Float.NaN;
+        }
+        return offset + code * scale;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(!(other instanceof Quantization)) {
+            return false;
+        }
+        Quantization quantization = (Quantization) other;
+        return bytes == quantization.bytes && Float.compare(scale, quantization.scale) == 0
+                && Float.compare(offset, quantization.offset) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return (bytes * 31 + Float.floatToIntBits(scale)) * 31 + Float.floatToIntBits(offset);
+    }
+
+    /**
+     * Writes a value rounded to the kept decimals as a JSON number.
+     */
+    void write(JsonStream stream, float value) throws IOException {
+        long code = Math.round((double) value * unit);
+        if(code < 0) {
+            stream.writeRaw("-");
+            code = -code;
+        }
+        stream.writeVal(code / unit);
+        if(decimals > 0) {
+            stream.writeRaw(fractions[(int) (code % unit)]);
+        }
+    }
+}
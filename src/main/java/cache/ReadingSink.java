@@ -0,0 +1,14 @@
+package cache;
+
+/**
+ * Receives the kalman estimates of a floorplan as they are read, sorted by x and y.
+ */
+public interface ReadingSink {
+
+    /**
+     * @return the int id of the AP, interning it if it has not been read before
+     */
+    int ap(String apId);
+
+    void add(int x, int y, int ap, float value);
+}
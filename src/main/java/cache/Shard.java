@@ -0,0 +1,63 @@
+package cache;
+
+/**
+ * One of count disjoint parts of the AP pair features of a floorplan, so a build can be split across processes or
+ * hosts and the partial caches merged afterwards.
+ *
+ * A feature belongs to the shard its FNV-1a hash modulo count selects. The hash is taken over the canonical pair
+ * name, so both AP orders land in the same shard and every process and JVM agrees on the split.
+ */
+public final class Shard {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int index;
+    private final int count;
+
+    public Shard(int index, int count) {
+        if(count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard " + index + " of " + count + " does not exist");
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param spec index/count, index counting from 0
+     * @throws IllegalArgumentException if spec is not a valid shard
+     */
+    public static Shard parse(String spec) {
+        int slash = spec.indexOf('/');
+        if(slash < 0) {
+            throw new IllegalArgumentException("Shard must be index/count: " + spec);
+        }
+        return new Shard(Integer.parseInt(spec.substring(0, slash).trim()),
+                Integer.parseInt(spec.substring(slash + 1).trim()));
+    }
+
+    public int index() {
+        return index;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean contains(String feature) {
+        if(count == 1) {
+            return true;
+        }
+        String name = FeatureGrid.canonical(feature);
+        long hash = FNV_OFFSET;
+        for(int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+        }
+        return (int) ((hash >>> 1) % count) == index;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
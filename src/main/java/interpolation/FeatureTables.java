@@ -0,0 +1,250 @@
+package interpolation;
+
+import cache.FeatureGrid;
+
+/**
+ * Neighbour and regression tables for one feature of a {@link FeatureGrid}.
+ *
+ * Every lookup the bilinear interpolator makes for a missing cell only depends on the known values of the
+ * feature, so the nearest known neighbours and the least squares fit of every row and column are computed
+ * once per feature and each interpolated cell becomes a constant time lookup.
+ *
+ * The known values are copied out of the grid first, so the worker can write interpolated values straight into
+ * the feature's slice while it still reads the original ones from here.
+ *
+ * An instance belongs to a single worker and is reused for every feature that worker interpolates.
+ */
+class FeatureTables {
+
+    private final int maxX;
+    private final int maxY;
+    private final int width;
+
+    private final float[] values;
+
+    //nearest known column left / right of the cell in the same row, -1 if there is none
+    private final int[] left;
+    private final int[] right;
+    //nearest row at or above / at or below the cell that the up / down searches would stop on, -1 if there is none
+    private final int[] up;
+    private final int[] down;
+
+    private final float[] rowSlope;
+    private final float[] rowIntercept;
+    private final float[] colSlope;
+    private final float[] colIntercept;
+
+    FeatureTables(int maxX, int maxY) {
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.width = maxX + 1;
+        int cells = FeatureGrid.cells(maxX, maxY);
+        values = new float[cells];
+        left = new int[cells];
+        right = new int[cells];
+        up = new int[cells];
+        down = new int[cells];
+        rowSlope = new float[maxY + 1];
+        rowIntercept = new float[maxY + 1];
+        colSlope = new float[maxX + 1];
+        colIntercept = new float[maxX + 1];
+    }
+
+    void compute(FeatureGrid grid, int feature) {
+        System.arraycopy(grid.values(), grid.offset(feature), values, 0, values.length);
+
+        for(int r = 0; r <= maxY; r++) {
+            int last = -1;
+            for(int c = 0; c <= maxX; c++) {
+                left[r * width + c] = last;
+                if(known(r, c)) {
+                    last = c;
+                }
+            }
+            last = -1;
+            for(int c = maxX; c >= 0; c--) {
+                right[r * width + c] = last;
+                if(known(r, c)) {
+                    last = c;
+                }
+            }
+            fitRow(r);
+        }
+
+        for(int c = 0; c <= maxX; c++) {
+            int last = -1;
+            for(int r = 0; r <= maxY; r++) {
+                if(!Float.isNaN(upperValue(r, c))) {
+                    last = r;
+                }
+                up[r * width + c] = last;
+            }
+            last = -1;
+            for(int r = maxY; r >= 0; r--) {
+                if(!Float.isNaN(lowerValue(r, c))) {
+                    last = r;
+                }
+                down[r * width + c] = last;
+            }
+            fitCol(c);
+        }
+    }
+
+    boolean known(int r, int c) {
+        return !Float.isNaN(values[r * width + c]);
+    }
+
+    /**
+     * @return the row the upward search from (r, c) stops on, or -1 if it runs off the grid
+     */
+    int upperRow(int r, int c) {
+        if(r == 0) {
+            r = 1;
+        }
+        return up[(r - 1) * width + c];
+    }
+
+    /**
+     * @return the row the downward search from (r, c) stops on, or -1 if it runs off the grid
+     */
+    int lowerRow(int r, int c) {
+        if(r >= maxY) {
+            return -1;
+        }
+        return down[(r + 1) * width + c];
+    }
+
+    /**
+     * The value the upward search uses on a row: the known value, else the blend of its left and right neighbours.
+     */
+    float upperValue(int r, int c) {
+        if(known(r, c)) {
+            return values[r * width + c];
+        }
+        float l = leftValue(r, c);
+        float rv = rightValue(r, c);
+        if(Float.isNaN(l) || Float.isNaN(rv)) {
+            return Float.NaN;
+        }
+        return BilinearInterpolator.inter(l, l, c, leftCol(r, c), rightCol(r, c));
+    }
+
+    /**
+     * The value the downward search uses on a row: the known value, else the blend of its left and right neighbours.
+     */
+    float lowerValue(int r, int c) {
+        if(known(r, c)) {
+            return values[r * width + c];
+        }
+        return blend(r, c);
+    }
+
+    /**
+     * Value of the column regression at row r, NaN when the fit gives nothing usable.
+     */
+    float extrapolateRow(int r, int c) {
+        float value = colIntercept[c] + colSlope[c] * r;
+        if(!Float.isNaN(value) && value > 0.0) {
+            return value;
+        }
+        return Float.NaN;
+    }
+
+    private float blend(int r, int c) {
+        float l = leftValue(r, c);
+        float rv = rightValue(r, c);
+        if(Float.isNaN(l) || Float.isNaN(rv)) {
+            return Float.NaN;
+        }
+        return BilinearInterpolator.inter(l, rv, c, leftCol(r, c), rightCol(r, c));
+    }
+
+    private int leftCol(int r, int c) {
+        int col = left[r * width + c];
+        return col >= 0 ? col : c - 1;
+    }
+
+    private float leftValue(int r, int c) {
+        int col = left[r * width + c];
+        if(col >= 0) {
+            return values[r * width + col];
+        }
+        return extrapolateCol(r, c - 1);
+    }
+
+    private int rightCol(int r, int c) {
+        int col = right[r * width + c];
+        return col >= 0 ? col : c + 1;
+    }
+
+    private float rightValue(int r, int c) {
+        int col = right[r * width + c];
+        if(col >= 0) {
+            return values[r * width + col];
+        }
+        return extrapolateCol(r, c + 1);
+    }
+
+    private float extrapolateCol(int r, int c) {
+        float value = rowIntercept[r] + rowSlope[r] * c;
+        if (!Float.isNaN(value) && value > 0.0) {
+            return value;
+        }
+        return Float.NaN;
+    }
+
+    private void fitRow(int r) {
+        int xSum = 0;
+        float ySum = 0;
+        float xySum = 0;
+        float x2sum = 0;
+        int length = 0;
+        for (int col = 0; col <= maxX; col++) {
+            if (known(r, col)) {
+                float y = values[r * width + col];
+                xSum += col;
+                ySum += y;
+                xySum += (col * y);
+                x2sum += (double) col * col;
+                length++;
+            }
+        }
+        fit(length, xSum, ySum, xySum, x2sum, rowSlope, rowIntercept, r);
+    }
+
+    private void fitCol(int c) {
+        int xSum = 0;
+        float ySum = 0;
+        float xySum = 0;
+        float x2sum = 0;
+        int length = 0;
+        for(int row = 0; row <= maxY; row++) {
+            //a row contributes its left / right blend when it has one, its known value otherwise
+            float found = blend(row, c);
+            if(Float.isNaN(found) && known(row, c)) {
+                found = values[row * width + c];
+            }
+
+            if(!Float.isNaN(found)) {
+                xSum += row;
+                ySum += found;
+                xySum += (row * found);
+                x2sum += (double) row * row;
+                length++;
+            }
+        }
+        fit(length, xSum, ySum, xySum, x2sum, colSlope, colIntercept, c);
+    }
+
+    private static void fit(int length, int xSum, float ySum, float xySum, float x2sum,
+                            float[] slopes, float[] intercepts, int i) {
+        float m = 0.0f;
+        float b = 0.0f;
+        if (length > 0) {
+            m = (float) ((length * xySum - xSum * ySum) / (length * x2sum - (double) xSum * xSum));
+            b = (float) ((ySum - m * xSum) / length);
+        }
+        slopes[i] = m;
+        intercepts[i] = b;
+    }
+}
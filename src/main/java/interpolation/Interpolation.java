@@ -0,0 +1,101 @@
+package interpolation;
+
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.IgnoredCoordinates;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The interpolation engines a build can use, selected with -i.
+ */
+public enum Interpolation {
+
+    //nearest neighbours along rows and columns with regression extrapolation, the original engine
+    BILINEAR {
+        @Override
+        public Interpolator create(FeatureGrid grid, int[] features, int maxX, int maxY, int minX, int minY,
+                                   IgnoredCoordinates ignored, int levels, ForkJoinPool pool,
+                                   BuildMetrics metrics) {
+            return new BilinearInterpolator(grid, features, maxX, maxY, minX, minY, ignored, pool, metrics);
+        }
+
+        //the FeatureTables of every feature being interpolated, a float and four ints per cell
+        @Override
+        public long scratchBytes(int cells, int parallelism) {
+            return 20L * cells * parallelism;
+        }
+    },
+
+    //linear fill along rows then columns, linear time per feature
+    SEPARABLE {
+        @Override
+        public Interpolator create(FeatureGrid grid, int[] features, int maxX, int maxY, int minX, int minY,
+                                   IgnoredCoordinates ignored, int levels, ForkJoinPool pool,
+                                   BuildMetrics metrics) {
+            return new SeparableInterpolator(grid, features, maxX, maxY, minX, minY, ignored, pool, metrics);
+        }
+    },
+
+    //means of ever coarser copies filled back down level by level, for large sparse grids
+    PYRAMID {
+        @Override
+        public Interpolator create(FeatureGrid grid, int[] features, int maxX, int maxY, int minX, int minY,
+                                   IgnoredCoordinates ignored, int levels, ForkJoinPool pool,
+                                   BuildMetrics metrics) {
+            return new PyramidInterpolator(grid, features, maxX, maxY, minX, minY, ignored, levels, pool, metrics);
+        }
+
+        //the ignored masks of every level, under 4/3 of a byte per cell, and the coarse levels of every feature being
+        //interpolated, under 4/3 of a float per cell
+        @Override
+        public long scratchBytes(int cells, int parallelism) {
+            return 2L * cells + 6L * cells * parallelism;
+        }
+
+        @Override
+        public int version(int levels) {
+            return super.version(levels) | levels << 8;
+        }
+    };
+
+    /**
+     * @param levels coarse levels of the pyramid engine, the other engines ignore it
+     */
+    public abstract Interpolator create(FeatureGrid grid, int[] features, int maxX, int maxY, int minX, int minY,
+                                        IgnoredCoordinates ignored, int levels, ForkJoinPool pool,
+                                        BuildMetrics metrics);
+
+    /**
+     * @return an upper bound of the bytes an interpolator of this engine allocates besides the grid for a floorplan
+     * of this many cells interpolated on this many workers
+     */
+    public long scratchBytes(int cells, int parallelism) {
+        return 0;
+    }
+
+    /**
+     * @return a number that tells caches built by this engine and its settings apart in fingerprints, 0 being
+     * kept for raw features
+     * @param levels coarse levels of the pyramid engine, the other engines ignore it
+     */
+    public int version(int levels) {
+        return ordinal() + 1;
+    }
+
+    /**
+     * @return the engine for a -i value, true being bilinear, or null for false and none, which keep the raw
+     * features only
+     * @throws IllegalArgumentException if there is no such engine
+     */
+    public static Interpolation forName(String name) {
+        name = name.toLowerCase();
+        if(name.equals("false") || name.equals("none")) {
+            return null;
+        }
+        if(name.equals("true")) {
+            return BILINEAR;
+        }
+        return valueOf(name.toUpperCase());
+    }
+}
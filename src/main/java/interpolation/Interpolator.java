@@ -1,21 +1,44 @@
 package interpolation;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.FinishedFeatures;
+import cache.IgnoredCoordinates;
 
-public class Interpolator {
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-    protected int[][] ignoredCoordinates;
-    protected HashMap<String, Float>[][] featuresCache;
-    protected final HashSet<String> allFeatures;
+/**
+ * Fills the missing values of a set of features in place.
+ *
+ * Features are independent of each other, so they are interpolated in parallel on a fork/join pool. Subclasses only
+ * implement {@link #interpolateFeature(int)}, which must write nothing outside the slice of its feature.
+ */
+public abstract class Interpolator {
+
+    //busy nanos and allocated bytes each thread has accounted for, so a task that runs other tasks or waits on them
+    //while it joins its subtasks reports only its own work
+    private static final ThreadLocal<long[]> ACCOUNTED = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    //read only, shared by every task
+    protected final IgnoredCoordinates ignoredCoordinates;
+    protected FeatureGrid featuresCache;
+    protected final int[] allFeatures;
     protected final int maxX;
     protected final int maxY;
     protected final int minX;
     protected final int minY;
 
-    public Interpolator(HashMap<String, Float>[][] featuresCache,
-                        HashSet<String> allFeatures, int maxX, int maxY, int minX, int minY, int[][] ignored) {
+    protected final ForkJoinPool pool;
+    protected final BuildMetrics metrics;
+
+    public Interpolator(FeatureGrid featuresCache, int[] allFeatures, int maxX, int maxY, int minX, int minY,
+                        IgnoredCoordinates ignored, ForkJoinPool pool, BuildMetrics metrics) {
 
         this.featuresCache = featuresCache;
         this.allFeatures = allFeatures;
@@ -24,9 +47,131 @@ public class Interpolator {
         this.minX = minX;
         this.minY = minY;
         this.ignoredCoordinates = ignored;
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Fills the missing, not ignored, cells of one feature in its slice of the grid.
+     */
+    protected abstract void interpolateFeature(int feature);
+
+    /**
+     * A task that records its wait, busy time and allocation with the metrics on the worker that runs it, less
+     * whatever that worker accounted for while it ran.
+     */
+    protected abstract class MeasuredTask extends RecursiveAction {
+        private final long forked;
+
+        protected MeasuredTask() {
+            this.forked = metrics.enabled() ? System.nanoTime() : 0;
+        }
+
+        protected abstract void run();
+
+        @Override
+        protected void compute() {
+            if(!metrics.enabled()) {
+                run();
+                return;
+            }
+            long[] accounted = ACCOUNTED.get();
+            long accountedBusy = accounted[0];
+            long accountedAllocated = accounted[1];
+            long start = System.nanoTime();
+            long allocated = BuildMetrics.allocatedBytes();
+            run();
+            long busy = System.nanoTime() - start;
+            allocated = BuildMetrics.allocatedBytes() - allocated;
+            //tasks run while this one joined its subtasks have recorded themselves already
+            metrics.addTask(start - forked, busy - (accounted[0] - accountedBusy),
+                    allocated - (accounted[1] - accountedAllocated));
+            accounted[0] = accountedBusy + busy;
+            accounted[1] = accountedAllocated + allocated;
+        }
     }
 
-    public HashMap<String, Float>[][] interpolate() {
+    /**
+     * Runs subtasks of the current task and waits for them. They record themselves on whichever worker runs them,
+     * and the time this worker spends running or waiting on them is left out of the current task.
+     */
+    protected void invokeSubtasks(MeasuredTask[] subtasks) {
+        if(!metrics.enabled()) {
+            RecursiveAction.invokeAll(subtasks);
+            return;
+        }
+        long[] accounted = ACCOUNTED.get();
+        long accountedBusy = accounted[0];
+        long accountedAllocated = accounted[1];
+        long start = System.nanoTime();
+        long allocated = BuildMetrics.allocatedBytes();
+        RecursiveAction.invokeAll(subtasks);
+        accounted[0] = accountedBusy + System.nanoTime() - start;
+        accounted[1] = accountedAllocated + BuildMetrics.allocatedBytes() - allocated;
+    }
+
+    /**
+     * Splits a range of features in half until a single feature is left, so idle workers can steal the
+     * other half. Sparse features hit the expensive extrapolation paths and take much longer than dense ones.
+     * Only the single features are measured.
+     */
+    private class FeaturesTask extends MeasuredTask {
+        private final int from;
+        private final int to;
+        private final FinishedFeatures finished;
+
+        FeaturesTask(int from, int to, FinishedFeatures finished) {
+            this.from = from;
+            this.to = to;
+            this.finished = finished;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1) {
+                super.compute();
+                if(finished != null) {
+                    finished.finish(allFeatures[from]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FeaturesTask(from, middle, finished), new FeaturesTask(middle, to, finished));
+        }
+
+        @Override
+        protected void run() {
+            interpolateFeature(allFeatures[from]);
+        }
+    }
+
+    public FeatureGrid interpolate() {
+        return interpolate(null);
+    }
+
+    /**
+     * Interpolates every feature and hands each one to finished as soon as its slice is filled, so a writer can
+     * write it while the others are still being interpolated. If interpolation fails the writer is told so.
+     */
+    public FeatureGrid interpolate(FinishedFeatures finished) {
+        long start = System.nanoTime();
+        try {
+            if(allFeatures.length > 0) {
+                pool.invoke(new FeaturesTask(0, allFeatures.length, finished));
+            }
+        } catch (RuntimeException e) {
+            if(finished != null) {
+                finished.fail();
+            }
+            throw e;
+        } catch (Error e) {
+            if(finished != null) {
+                finished.fail();
+            }
+            throw e;
+        }
+        metrics.add(BuildMetrics.Phase.INTERPOLATE, System.nanoTime() - start);
+
         return featuresCache;
     }
 }
@@ -0,0 +1,57 @@
+package interpolation;
+
+/**
+ * The element-wise loops of the interpolators.
+ *
+ * {@link #get()} returns the Vector API kernels when the jdk.incubator.vector module is available, which takes
+ * --add-modules jdk.incubator.vector on the java command line, and the scalar kernels otherwise. Every vector lane
+ * does the same float operations in the same order as the scalar loop, so both give bit-identical caches.
+ * Setting -Dfeatures.vector=false forces the scalar kernels.
+ */
+abstract class Kernels {
+
+    private static final Kernels INSTANCE = load();
+
+    static Kernels get() {
+        return INSTANCE;
+    }
+
+    private static Kernels load() {
+        if(!Boolean.parseBoolean(System.getProperty("features.vector", "true"))) {
+            return new Scalar();
+        }
+        try {
+            //loaded by name so a JVM without the incubator module never links against it
+            return (Kernels) Class.forName("interpolation.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            return new Scalar();
+        }
+    }
+
+    /**
+     * For every i below length where v1[i] and v2[i] are known, writes
+     * {@link BilinearInterpolator#inter(float, float, int, int, int) inter}(v1[i], v2[i], x, x1[i], x2[i]) to
+     * out[offset + i] if it is positive. Everything else in out is left alone.
+     */
+    abstract void blend(float[] v1, float[] v2, int[] x1, int[] x2, int x, float[] out, int offset, int length);
+
+    static class Scalar extends Kernels {
+
+        @Override
+        void blend(float[] v1, float[] v2, int[] x1, int[] x2, int x, float[] out, int offset, int length) {
+            blend(v1, v2, x1, x2, x, out, offset, 0, length);
+        }
+
+        static void blend(float[] v1, float[] v2, int[] x1, int[] x2, int x, float[] out, int offset, int from,
+                          int to) {
+            for(int i = from; i < to; i++) {
+                if(!Float.isNaN(v1[i]) && !Float.isNaN(v2[i])) {
+                    float inter = BilinearInterpolator.inter(v1[i], v2[i], x, x1[i], x2[i]);
+                    if(inter > 0) {
+                        out[offset + i] = inter;
+                    }
+                }
+            }
+        }
+    }
+}
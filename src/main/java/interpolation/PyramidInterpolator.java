@@ -0,0 +1,248 @@
+package interpolation;
+
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.IgnoredCoordinates;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fills a feature coarse to fine from a pyramid of ever smaller copies of it.
+ *
+ * Every level halves the one below it in both directions, a coarse cell holding the mean of the known cells it
+ * covers. The coarsest level is filled with linear passes along its rows and then its columns, as in
+ * {@link SeparableInterpolator}. Every finer level then fills its missing cells from the four nearest cells of the
+ * level above. No lookup goes further than one coarse cell however far away the nearest known value is, so
+ * large sparse grids cost time linear in their cells.
+ *
+ * A coarse cell is ignored when every cell it covers is ignored. Ignored cells are never filled at any level.
+ * Known values are used wherever they are, as in the other engines, and only positive values are kept. Every
+ * filled cell counts as interpolated.
+ */
+public class PyramidInterpolator extends Interpolator {
+
+    public static final int DEFAULT_LEVELS = 4;
+
+    //size and ignored cells of every level, level 0 being the interpolated part of the grid
+    private final int[] widths;
+    private final int[] heights;
+    private final boolean[][] ignored;
+    //buffers of the coarse levels, finished features hand them back for reuse
+    private final ConcurrentLinkedQueue<float[][]> spareLevels = new ConcurrentLinkedQueue<float[][]>();
+
+    /**
+     * @param levels coarse levels above the grid, fewer if the grid shrinks to a single cell first
+     */
+    public PyramidInterpolator(FeatureGrid featuresCache, int[] allFeatures,
+                               int maxX, int maxY, int minX, int minY, IgnoredCoordinates ignored, int levels,
+                               ForkJoinPool pool, BuildMetrics metrics) {
+        super(featuresCache, allFeatures, maxX, maxY, minX, minY, ignored, pool, metrics);
+
+        int width = maxX - minX + 1;
+        int height = maxY - minY + 1;
+        int count = 1;
+        for(int w = width, h = height; count <= levels && (w > 1 || h > 1); count++) {
+            w = (w + 1) >> 1;
+            h = (h + 1) >> 1;
+        }
+        widths = new int[count];
+        heights = new int[count];
+        this.ignored = new boolean[count][];
+
+        widths[0] = width;
+        heights[0] = height;
+        this.ignored[0] = new boolean[width * height];
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                this.ignored[0][y * width + x] = ignored.ignored(minX + x, minY + y);
+            }
+        }
+        for(int l = 1; l < count; l++) {
+            int fineWidth = widths[l - 1];
+            widths[l] = (fineWidth + 1) >> 1;
+            heights[l] = (heights[l - 1] + 1) >> 1;
+            boolean[] coarse = new boolean[widths[l] * heights[l]];
+            Arrays.fill(coarse, true);
+            boolean[] fine = this.ignored[l - 1];
+            for(int y = 0; y < heights[l - 1]; y++) {
+                for(int x = 0; x < fineWidth; x++) {
+                    if(!fine[y * fineWidth + x]) {
+                        coarse[(y >> 1) * widths[l] + (x >> 1)] = false;
+                    }
+                }
+            }
+            this.ignored[l] = coarse;
+        }
+    }
+
+    @Override
+    protected void interpolateFeature(int feature) {
+        float[][] levels = spareLevels.poll();
+        if(levels == null) {
+            levels = new float[widths.length][];
+            for(int l = 1; l < widths.length; l++) {
+                levels[l] = new float[widths[l] * heights[l]];
+            }
+        }
+        //level 0 is read and written in place in the grid
+        float[] values = featuresCache.values();
+        int base = featuresCache.index(feature, minX, minY);
+        int stride = maxX + 1;
+        int top = widths.length - 1;
+
+        if(top > 0) {
+            pull(values, base, stride, 0, levels[1]);
+        }
+        for(int l = 2; l <= top; l++) {
+            pull(levels[l - 1], 0, widths[l - 1], l - 1, levels[l]);
+        }
+
+        long filled;
+        if(top == 0) {
+            filled = fillLines(values, base, stride, 0);
+        } else {
+            fillLines(levels[top], 0, widths[top], top);
+            for(int l = top - 1; l > 0; l--) {
+                push(levels[l + 1], l + 1, levels[l], 0, widths[l]);
+            }
+            filled = push(levels[1], 1, values, base, stride);
+        }
+        metrics.addCells(filled, 0);
+
+        spareLevels.offer(levels);
+    }
+
+    /**
+     * Sets every cell of level fineLevel + 1 to the mean of the known cells it covers, NaN if there are none.
+     */
+    private void pull(float[] fine, int base, int stride, int fineLevel, float[] coarse) {
+        int fineWidth = widths[fineLevel];
+        int fineHeight = heights[fineLevel];
+        int width = widths[fineLevel + 1];
+        for(int y = 0; y < heights[fineLevel + 1]; y++) {
+            for(int x = 0; x < width; x++) {
+                float sum = 0;
+                int known = 0;
+                for(int fy = y << 1; fy <= Math.min((y << 1) + 1, fineHeight - 1); fy++) {
+                    for(int fx = x << 1; fx <= Math.min((x << 1) + 1, fineWidth - 1); fx++) {
+                        float value = fine[base + fy * stride + fx];
+                        if(!Float.isNaN(value)) {
+                            sum += value;
+                            known++;
+                        }
+                    }
+                }
+                coarse[y * width + x] = known > 0 ? sum / known : Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * Fills the missing cells of level coarseLevel - 1 from the cells of coarseLevel around their centres, each of
+     * the four weighted by its distance and left out when it has no value.
+     *
+     * @return the cells filled
+     */
+    private long push(float[] coarse, int coarseLevel, float[] fine, int base, int stride) {
+        int width = widths[coarseLevel];
+        int height = heights[coarseLevel];
+        boolean[] fineIgnored = ignored[coarseLevel - 1];
+        int fineWidth = widths[coarseLevel - 1];
+        long filled = 0;
+        for(int fy = 0; fy < heights[coarseLevel - 1]; fy++) {
+            int y0 = fy >> 1;
+            //a fine cell's centre is a quarter of a coarse cell from its parent's, towards this neighbour
+            int y1 = (fy & 1) == 0 ? y0 - 1 : y0 + 1;
+            for(int fx = 0; fx < fineWidth; fx++) {
+                int index = base + fy * stride + fx;
+                if(!Float.isNaN(fine[index]) || fineIgnored[fy * fineWidth + fx]) {
+                    continue;
+                }
+                int x0 = fx >> 1;
+                int x1 = (fx & 1) == 0 ? x0 - 1 : x0 + 1;
+
+                float sum = 0;
+                float weights = 0;
+                for(int i = 0; i < 4; i++) {
+                    int x = (i & 1) == 0 ? x0 : x1;
+                    int y = (i & 2) == 0 ? y0 : y1;
+                    if(x < 0 || x >= width || y < 0 || y >= height) {
+                        continue;
+                    }
+                    float value = coarse[y * width + x];
+                    if(Float.isNaN(value)) {
+                        continue;
+                    }
+                    float weight = (x == x0 ? 0.75f : 0.25f) * (y == y0 ? 0.75f : 0.25f);
+                    sum += weight * value;
+                    weights += weight;
+                }
+                if(weights > 0) {
+                    float value = sum / weights;
+                    if(value > 0) {
+                        fine[index] = value;
+                        filled++;
+                    }
+                }
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Fills a level with a linear pass along every row and then down every column, so the coarsest level has a value
+     * wherever its feature has any.
+     *
+     * @return the cells filled
+     */
+    private long fillLines(float[] values, int base, int stride, int level) {
+        int width = widths[level];
+        int height = heights[level];
+        long filled = 0;
+        for(int y = 0; y < height; y++) {
+            filled += fillLine(values, base + y * stride, 1, width, ignored[level], y * width, 1);
+        }
+        for(int x = 0; x < width; x++) {
+            filled += fillLine(values, base + x, stride, height, ignored[level], x, width);
+        }
+        return filled;
+    }
+
+    /**
+     * Interpolates between the known cells of a line and carries the first and last known value out to its ends.
+     */
+    private static long fillLine(float[] values, int start, int stride, int length,
+                                 boolean[] ignored, int ignoredStart, int ignoredStride) {
+        long filled = 0;
+        int last = -1;
+        float lastValue = Float.NaN;
+        for(int i = 0; i <= length; i++) {
+            float value = i < length ? values[start + i * stride] : Float.NaN;
+            if(i < length && Float.isNaN(value)) {
+                continue;
+            }
+            if(i == length && last < 0) {
+                break;
+            }
+            for(int j = last + 1; j < i; j++) {
+                float fill;
+                if(last < 0) {
+                    fill = value;
+                } else if(i == length) {
+                    fill = lastValue;
+                } else {
+                    fill = lastValue + (value - lastValue) * ((float)(j - last) / (float)(i - last));
+                }
+                if(!ignored[ignoredStart + j * ignoredStride] && fill > 0) {
+                    values[start + j * stride] = fill;
+                    filled++;
+                }
+            }
+            last = i;
+            lastValue = value;
+        }
+        return filled;
+    }
+}
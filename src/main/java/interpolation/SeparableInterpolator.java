@@ -0,0 +1,91 @@
+package interpolation;
+
+import cache.BuildMetrics;
+import cache.FeatureGrid;
+import cache.IgnoredCoordinates;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fills a feature with two passes of linear interpolation, along every row and then down every column.
+ *
+ * The row pass interpolates between neighbouring known cells of a row and carries the nearest known value out to
+ * the ends of the row. The column pass does the same down every column, which fills the rows that had no known
+ * value at all. Each pass visits every cell once, so a feature costs time linear in its cells, where the
+ * bilinear engine builds neighbour and regression tables first. It is less faithful at the edges, which get the
+ * nearest value instead of a fitted one. Ignored cells are never written and only positive values are kept, as in
+ * {@link BilinearInterpolator}.
+ */
+public class SeparableInterpolator extends Interpolator {
+
+    public SeparableInterpolator(FeatureGrid featuresCache, int[] allFeatures,
+                                 int maxX, int maxY, int minX, int minY, IgnoredCoordinates ignored,
+                                 ForkJoinPool pool, BuildMetrics metrics) {
+        super(featuresCache, allFeatures, maxX, maxY, minX, minY, ignored, pool, metrics);
+    }
+
+    @Override
+    protected void interpolateFeature(int feature) {
+        float[] values = featuresCache.values();
+        int offset = featuresCache.offset(feature);
+        int width = maxX + 1;
+        //cells interpolated and extrapolated
+        long[] counts = new long[2];
+
+        for(int r = minY; r <= maxY; r++) {
+            fillLine(values, offset + r * width, 1, width, minX, r, true, counts);
+        }
+        for(int c = minX; c <= maxX; c++) {
+            fillLine(values, offset + c, width, maxY + 1, minY, c, false, counts);
+        }
+        metrics.addCells(counts[0], counts[1]);
+    }
+
+    /**
+     * Fills the missing cells from fillFrom to the end of a line of length cells, stride apart in values.
+     * Cells between two known cells are interpolated, cells past the first or last known cell get its value.
+     *
+     * @param line the y of a row, or the x of a column
+     */
+    private void fillLine(float[] values, int start, int stride, int length, int fillFrom, int line, boolean row,
+                          long[] counts) {
+        int last = -1;
+        float lastValue = Float.NaN;
+        for(int i = 0; i < length; i++) {
+            float value = values[start + i * stride];
+            if(Float.isNaN(value)) {
+                continue;
+            }
+            //only cells behind i are written, so the cells still ahead keep their known values
+            if(last < 0) {
+                for(int j = fillFrom; j < i; j++) {
+                    fill(values, start + j * stride, ignored(row, line, j), value, counts, 1);
+                }
+            } else {
+                for(int j = Math.max(last + 1, fillFrom); j < i; j++) {
+                    float inter = lastValue + (value - lastValue) * ((float)(j - last) / (float)(i - last));
+                    fill(values, start + j * stride, ignored(row, line, j), inter, counts, 0);
+                }
+            }
+            last = i;
+            lastValue = value;
+        }
+        if(last >= 0) {
+            for(int j = Math.max(last + 1, fillFrom); j < length; j++) {
+                fill(values, start + j * stride, ignored(row, line, j), lastValue, counts, 1);
+            }
+        }
+    }
+
+    private boolean ignored(boolean row, int line, int j) {
+        return row ? ignoredCoordinates.ignored(j, line) : ignoredCoordinates.ignored(line, j);
+    }
+
+    private static void fill(float[] values, int index, boolean ignored, float value, long[] counts, int kind) {
+        if(ignored || !(value > 0)) {
+            return;
+        }
+        values[index] = value;
+        counts[kind]++;
+    }
+}
@@ -0,0 +1,48 @@
+package interpolation;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Kernels} on the Vector API, a whole vector of cells per instruction. Only ever loaded through
+ * {@link Kernels#get()}; the tail of every loop that does not fill a vector runs the scalar kernel.
+ */
+class VectorKernels extends Kernels.Scalar {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    //same lane count as FLOATS, so int and float lanes line up
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+
+    @Override
+    void blend(float[] v1, float[] v2, int[] x1, int[] x2, int x, float[] out, int offset, int length) {
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for(; i < bound; i += FLOATS.length()) {
+            FloatVector y1 = FloatVector.fromArray(FLOATS, v1, i);
+            FloatVector y2 = FloatVector.fromArray(FLOATS, v2, i);
+            VectorMask<Float> known = y1.test(VectorOperators.IS_NAN).or(y2.test(VectorOperators.IS_NAN)).not();
+            if(!known.anyTrue()) {
+                continue;
+            }
+            IntVector lower = IntVector.fromArray(INTS, x1, i);
+            IntVector upper = IntVector.fromArray(INTS, x2, i);
+
+            //the steps of inter, lane by lane
+            FloatVector x2mx = (FloatVector) upper.sub(x).convert(VectorOperators.I2F, 0);
+            FloatVector x2mx1 = (FloatVector) upper.sub(lower).convert(VectorOperators.I2F, 0);
+            FloatVector xmx1 = (FloatVector) IntVector.broadcast(INTS, x).sub(lower).convert(VectorOperators.I2F, 0);
+            FloatVector l = x2mx.div(x2mx1).mul(y1);
+            FloatVector r = xmx1.div(x2mx1).mul(y2);
+            FloatVector inter = l.add(r);
+
+            //a masked store boxes its vector where it is not intrinsified, a blend and a full store never do
+            FloatVector.fromArray(FLOATS, out, offset + i)
+                    .blend(inter, known.and(inter.compare(VectorOperators.GT, 0f)))
+                    .intoArray(out, offset + i);
+        }
+        blend(v1, v2, x1, x2, x, out, offset, i, length);
+    }
+}
@@ -0,0 +1,98 @@
+package interpolation;
+
+import cache.FeatureGrid;
+import cache.FeatureGridBuilder;
+import cache.IgnoredCoordinates;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Interpolating a feature allocates nothing per cell once the interpolator's tables and buffers are pooled. The
+ * whole interpolation runs on the one worker of the pool, so that worker's allocated bytes counter covers it.
+ */
+public class BilinearInterpolatorAllocationTest {
+
+    private static final int SIZE = 200;
+    private static final int APS = 6;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final double MAX_BYTES_PER_CELL = 0.05;
+
+    private com.sun.management.ThreadMXBean threads;
+    private ForkJoinPool pool;
+    private FeatureGrid grid;
+    private int[] features;
+    private float[] raw;
+
+    @Before
+    public void createGrid() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        pool = new ForkJoinPool(1);
+        FeatureGridBuilder builder = new FeatureGridBuilder(SIZE - 1, SIZE - 1, 0, 0);
+        Random random = new Random(1);
+        for(int x = 0; x < SIZE; x++) {
+            for(int y = 0; y < SIZE; y++) {
+                if(random.nextDouble() >= 0.05) {
+                    continue;
+                }
+                for(int ap = 0; ap < APS; ap++) {
+                    if(random.nextDouble() < 0.8) {
+                        builder.add(x, y, String.format("02:00:00:00:00:%02x", ap), -30f - random.nextFloat() * 60f);
+                    }
+                }
+            }
+        }
+        grid = builder.grid();
+        features = builder.features();
+        raw = grid.values().clone();
+    }
+
+    @After
+    public void shutdownPool() {
+        if(pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void interpolationAllocatesNearlyNothingPerCell() throws Exception {
+        Interpolator interpolator = new BilinearInterpolator(grid, features, SIZE - 1, SIZE - 1, 0, 0,
+                new IgnoredCoordinates(SIZE - 1, SIZE - 1), pool);
+        for(int round = 0; round < WARMUP_ROUNDS; round++) {
+            reset();
+            interpolator.interpolate();
+        }
+
+        long worker = pool.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return Thread.currentThread().getId();
+            }
+        }).get();
+        reset();
+        long before = threads.getThreadAllocatedBytes(worker);
+        interpolator.interpolate();
+        long allocated = threads.getThreadAllocatedBytes(worker) - before;
+
+        double perCell = (double) allocated / ((long) features.length * grid.cells());
+        assertTrue(allocated + " bytes allocated, " + perCell + " per cell", perCell < MAX_BYTES_PER_CELL);
+    }
+
+    //interpolation fills the grid in place, every round starts from the raw features again
+    private void reset() {
+        System.arraycopy(raw, 0, grid.values(), 0, raw.length);
+    }
+}